@@ -0,0 +1,87 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.squareup.moshi.JsonAdapter;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decoding of recorded responses with the global moshi instance, the way {@link Network} does it.
+ * each fixture is decoded from a fresh buffer, as it would be read from a response body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecodeBenchmark {
+
+    private byte[] repositories;
+    private byte[] branches;
+    private byte[] users;
+    private byte[] contents;
+    private byte[] protection;
+
+    private JsonAdapter<Repository[]> repositoryAdapter;
+    private JsonAdapter<Branch[]> branchAdapter;
+    private JsonAdapter<User[]> userAdapter;
+    private JsonAdapter<Content[]> contentAdapter;
+    private JsonAdapter<Branch.Protection> protectionAdapter;
+
+    @Setup
+    public void setup() {
+        repositories = Fixtures.load("repositories.json").getBytes(StandardCharsets.UTF_8);
+        branches = Fixtures.load("branches.json").getBytes(StandardCharsets.UTF_8);
+        users = Fixtures.load("users.json").getBytes(StandardCharsets.UTF_8);
+        contents = Fixtures.load("contents.json").getBytes(StandardCharsets.UTF_8);
+        protection = Fixtures.load("protection.json").getBytes(StandardCharsets.UTF_8);
+
+        repositoryAdapter = Github.getMoshi().adapter(Repository[].class);
+        branchAdapter = Github.getMoshi().adapter(Branch[].class);
+        userAdapter = Github.getMoshi().adapter(User[].class);
+        contentAdapter = Github.getMoshi().adapter(Content[].class);
+        protectionAdapter = Github.getMoshi().adapter(Branch.Protection.class);
+    }
+
+    @Benchmark
+    public Repository[] repositories() throws IOException {
+        return repositoryAdapter.fromJson(new Buffer().write(repositories));
+    }
+
+    @Benchmark
+    public Branch[] branches() throws IOException {
+        return branchAdapter.fromJson(new Buffer().write(branches));
+    }
+
+    @Benchmark
+    public User[] users() throws IOException {
+        return userAdapter.fromJson(new Buffer().write(users));
+    }
+
+    @Benchmark
+    public Content[] contents() throws IOException {
+        return contentAdapter.fromJson(new Buffer().write(contents));
+    }
+
+    @Benchmark
+    public Branch.Protection protection() throws IOException {
+        return protectionAdapter.fromJson(new Buffer().write(protection));
+    }
+}
@@ -0,0 +1,44 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * loads the recorded api responses in {@code src/jmh/resources/fixtures}.
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    /**
+     * loads a fixture.
+     * @param name the file name, such as {@code repositories.json}
+     * @return the content
+     */
+    static String load(String name) {
+        try(InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if(in == null) throw new IllegalArgumentException("no fixture " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
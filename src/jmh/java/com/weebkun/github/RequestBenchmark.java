@@ -0,0 +1,99 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.weebkun.utils.JsonParser;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * building and writing of request bodies, and building of endpoints, without sending anything.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RequestBenchmark {
+
+    // a typical source file
+    private static final int CONTENT_SIZE = 16 * 1024;
+
+    private byte[] content;
+    private Map<String, String> fields;
+    private Options options;
+    private final Buffer sink = new Buffer();
+
+    @Setup
+    public void setup() {
+        content = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(content);
+
+        fields = new LinkedHashMap<>();
+        fields.put("client_id", "Iv1.8a61f9b3a7aba766");
+        fields.put("scope", "repo read:org");
+        fields.put("device_code", "3584d83530557fdd1f46af8289938c8ef79f9dc5");
+        fields.put("grant_type", "urn:ietf:params:oauth:grant-type:device_code");
+
+        options = new Options();
+        options.visibility = "all";
+        options.affiliation = "owner,collaborator,organization_member";
+        options.sort = "updated";
+        options.direction = "desc";
+        options.perPage = 100;
+        options.page = 3;
+        options.since = "2020-01-01T00:00:00Z";
+    }
+
+    @Benchmark
+    public String jsonParser() {
+        return new JsonParser(fields).parse();
+    }
+
+    @Benchmark
+    public long createFileBody() throws IOException {
+        Repository.createFileBody("add generated sources", content, "main").writeTo(sink);
+        return drain();
+    }
+
+    @Benchmark
+    public long updateFileBody() throws IOException {
+        File.updateBody("regenerate sources", content, "95b966ae1c166bd92f8ae7d1c313e738c731dfc3", "main").writeTo(sink);
+        return drain();
+    }
+
+    // bodies are written into the request, so measure writing them into a reused buffer
+    private long drain() {
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+
+    @Benchmark
+    public String userReposEndPoint() {
+        return Github.userReposEndPoint(options);
+    }
+
+    @Benchmark
+    public String organisationRepositoriesEndPoint() {
+        return Organisation.repositoriesEndPoint("acme", options);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.squareup.moshi.JsonAdapter;
+import okio.BufferedSource;
+import okio.Okio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * warm start of an {@link EntityCache} from a snapshot, against parsing the same repositories from json again.
+ * the recorded repositories are copied under new names to fill the cache, as a service would after reading many repos.
+ * the size of both files is printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SnapshotBenchmark {
+
+    @Param({"1200"})
+    public int repositories;
+
+    private File snapshot;
+    private File json;
+    private JsonAdapter<Repository> adapter;
+
+    @Setup
+    public void setup() throws IOException {
+        adapter = Github.getMoshi().adapter(Repository.class);
+        JsonAdapter<Repository[]> arrayAdapter = Github.getMoshi().adapter(Repository[].class);
+        String fixture = Fixtures.load("repositories.json");
+
+        EntityCache cache = new EntityCache();
+        StringBuilder lines = new StringBuilder();
+        for(int copy = 0, count = 0; count < repositories; copy++) {
+            for(Repository repository : arrayAdapter.fromJson(fixture)) {
+                if(count == repositories) break;
+                count++;
+                repository.name += "-" + copy;
+                repository.full_name += "-" + copy;
+                cache.put(Repository.class, "/repos/" + repository.full_name, repository);
+                lines.append(adapter.toJson(repository)).append('\n');
+            }
+        }
+
+        snapshot = File.createTempFile("entities", ".ghes");
+        snapshot.deleteOnExit();
+        cache.writeSnapshot(snapshot);
+        json = File.createTempFile("entities", ".json");
+        json.deleteOnExit();
+        Files.write(json.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.printf("%nsnapshot: %d bytes, json: %d bytes%n", snapshot.length(), json.length());
+    }
+
+    @Benchmark
+    public EntityCache loadSnapshot() throws IOException {
+        EntityCache cache = new EntityCache();
+        cache.loadSnapshot(snapshot);
+        return cache;
+    }
+
+    @Benchmark
+    public EntityCache parseJson() throws IOException {
+        EntityCache cache = new EntityCache();
+        try(BufferedSource source = Okio.buffer(Okio.source(json))) {
+            String line;
+            while((line = source.readUtf8Line()) != null) {
+                Repository repository = adapter.fromJson(line);
+                cache.put(Repository.class, "/repos/" + repository.full_name, repository);
+            }
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.loadtest;
+
+import com.weebkun.github.File;
+import com.weebkun.github.Github;
+import com.weebkun.github.Hedging;
+import com.weebkun.github.Options;
+import com.weebkun.github.Organisation;
+import com.weebkun.github.Repository;
+import com.weebkun.resilience.AdaptiveLimit;
+import com.weebkun.resilience.Priority;
+import com.weebkun.resilience.PriorityDispatcher;
+import com.weebkun.utils.HttpErrorException;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * drives the public api against a {@link StandInServer} at a target concurrency
+ * and reports the throughput, p50/p99 latency and allocation per call of each operation.
+ *
+ * <p>
+ *     run with {@code ./gradlew loadTest --args="--concurrency=32 --duration=30"}.
+ *     options, all optional:
+ *     {@code --concurrency} threads calling the api (default 16),
+ *     {@code --duration} seconds measured (default 20), {@code --warmup} seconds before measuring (default 5),
+ *     {@code --latency} and {@code --jitter} of the stand-in in milliseconds (default 20 and 10),
+ *     {@code --slow-rate} share of calls taking {@code --slow-latency} milliseconds instead (default 0 and 500),
+ *     {@code --hedging} to hedge slow get requests (default false),
+ *     {@code --capacity} calls the stand-in works on at once, the rest queue up (default 0, no limit),
+ *     {@code --adaptive} to let an adaptive limit find the concurrency (default false),
+ *     {@code --secondary-limit-rate} and {@code --server-error-rate} between 0 and 1 (default 0),
+ *     {@code --operations} a comma separated subset of
+ *     {@code get,listBranches,getFile,getRepositories,getReadMe,getReadMeBefore}
+ *     (default all but {@code getReadMeBefore}).
+ * </p>
+ * {@code getReadMeBefore} reads the readme the way the library did before media types were set per request,
+ * to compare against {@code getReadMe}: {@code --operations=getReadMe,getReadMeBefore}.
+ * allocation is measured on the calling threads, which is where the library decodes responses.
+ */
+public class LoadTest {
+
+    private static final String ORG = "acme";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "20"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        List<Operation> operations = operations(options.getOrDefault("operations", "get,listBranches,getFile,getRepositories,getReadMe"));
+
+        StandInServer server = new StandInServer()
+                .setLatency(Integer.parseInt(options.getOrDefault("latency", "20")), Integer.parseInt(options.getOrDefault("jitter", "10")))
+                .setSecondaryLimitRate(Double.parseDouble(options.getOrDefault("secondary-limit-rate", "0")))
+                .setServerErrorRate(Double.parseDouble(options.getOrDefault("server-error-rate", "0")))
+                .setSlowCalls(Double.parseDouble(options.getOrDefault("slow-rate", "0")), Integer.parseInt(options.getOrDefault("slow-latency", "500")))
+                .setCapacity(Integer.parseInt(options.getOrDefault("capacity", "0")));
+        Hedging hedging = Boolean.parseBoolean(options.getOrDefault("hedging", "false")) ? new Hedging() : null;
+        Github.setHedging(hedging);
+        server.start();
+        Github.setRoot(server.getRoot());
+        Github.authenticate("load-test-token");
+        // the calls share one connection pool, keep a connection per thread alive
+        OkHttpClient.Builder client = Github.getClient().newBuilder()
+                .connectionPool(new ConnectionPool(concurrency, 5, TimeUnit.MINUTES));
+        AdaptiveLimit limit = Boolean.parseBoolean(options.getOrDefault("adaptive", "false")) ? new AdaptiveLimit() : null;
+        if(limit != null) client.addInterceptor(new PriorityDispatcher().setLimit(limit).setReservedSlots(0));
+        Github.setClient(client.build());
+
+        System.out.printf("stand-in at %s, %d threads, %ds warmup, %ds measured%n", server.getRoot(), concurrency, warmup, duration);
+        run(operations, concurrency, warmup);
+        Map<Operation, Stats> results = run(operations, concurrency, duration);
+        server.stop();
+        report(results, duration);
+        if(limit != null) {
+            System.out.printf("adaptive limit: %d calls, lowest latency %.2f ms%n", limit.getLimit(), limit.getMinLatency() / 1e6);
+        }
+        if(hedging != null) {
+            System.out.printf("hedges: %d of %d requests, %d won%n", hedging.getHedges(), hedging.getRequests(), hedging.getWins());
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            if(!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("expected --name=value but got " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static List<Operation> operations(String names) {
+        List<Operation> operations = new ArrayList<>();
+        for(String name : names.split(",")) operations.add(Operation.valueOf(name.trim()));
+        return operations;
+    }
+
+    private static Map<Operation, Stats> run(List<Operation> operations, int concurrency, int seconds) throws InterruptedException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Map<Operation, Stats>> perThread = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for(int t = 0; t < concurrency; t++) {
+            int offset = t;
+            Thread thread = new Thread(() -> {
+                Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+                for(Operation operation : operations) stats.put(operation, new Stats());
+                long id = Thread.currentThread().getId();
+                // the stand-in only reports the rate limit, interactive calls are not held back for it
+                Priority.Scope scope = Priority.INTERACTIVE.enter();
+                try {
+                    for(int i = offset; System.nanoTime() < end; i++) {
+                        Operation operation = operations.get(i % operations.size());
+                        Stats stat = stats.get(operation);
+                        long allocated = threads.getThreadAllocatedBytes(id);
+                        long start = System.nanoTime();
+                        try {
+                            operation.call(i);
+                        } catch (RuntimeException e) {
+                            stat.errors.merge(e.getClass().getSimpleName() + ": " + e.getMessage(), 1, Integer::sum);
+                        }
+                        stat.record(System.nanoTime() - start, threads.getThreadAllocatedBytes(id) - allocated);
+                    }
+                    perThread.add(stats);
+                } finally {
+                    scope.close();
+                    done.countDown();
+                }
+            }, "load-test-" + t);
+            thread.start();
+        }
+        done.await();
+
+        Map<Operation, Stats> merged = new EnumMap<>(Operation.class);
+        for(Map<Operation, Stats> stats : perThread) {
+            stats.forEach((operation, stat) -> merged.computeIfAbsent(operation, o -> new Stats()).merge(stat));
+        }
+        return merged;
+    }
+
+    private static void report(Map<Operation, Stats> results, int seconds) {
+        System.out.printf("%-16s %10s %8s %10s %10s %10s %14s%n", "operation", "calls", "errors", "calls/s", "p50 ms", "p99 ms", "alloc/call B");
+        results.forEach((operation, stats) -> {
+            long[] latencies = stats.latencies();
+            System.out.printf("%-16s %10d %8d %10.1f %10.2f %10.2f %14d%n",
+                    operation, stats.count, stats.errorCount(), stats.count / (double) seconds,
+                    percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                    stats.count > 0 ? stats.allocated / stats.count : 0);
+        });
+        results.forEach((operation, stats) -> stats.errors.forEach((error, count) ->
+                System.out.printf("%s: %d x %s%n", operation, count, error)));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if(sorted.length == 0) return 0;
+        int index = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    /**
+     * the api calls the load test can make.
+     */
+    enum Operation {
+        get {
+            @Override
+            void call(int i) {
+                Repository.get(ORG, "service-" + (i % 30));
+            }
+        },
+        listBranches {
+            @Override
+            void call(int i) {
+                // walk the pages the stand-in advertises in its link headers
+                repository(i).listBranches(i % 3 + 1, 10);
+            }
+        },
+        getFile {
+            @Override
+            void call(int i) {
+                repository(i).getFile("src/main/java/com/acme/billing/InvoiceTotals.java");
+            }
+        },
+        getRepositories {
+            @Override
+            void call(int i) {
+                Options options = new Options();
+                options.perPage = 10;
+                options.page = i % 3 + 1;
+                Organisation.getRepositories(ORG, options);
+            }
+        },
+        getReadMe {
+            @Override
+            void call(int i) {
+                repository(i).getReadMeRaw("main");
+            }
+        },
+        getReadMeBefore {
+            @Override
+            void call(int i) {
+                // a new client, so a new connection, per call, and the readme decoded from a json contents object
+                OkHttpClient client = new OkHttpClient();
+                Request request = new Request.Builder()
+                        .url(Github.getRoot() + String.format("/repos/%s/%s/readme?ref=main", ORG, repository(i).name))
+                        .build();
+                try(Response response = client.newCall(request).execute()) {
+                    if(response.code() != 200) throw new HttpErrorException(response);
+                    File file = Github.getMoshi().adapter(File.class).fromJson(response.body().source());
+                    new String(Base64.getMimeDecoder().decode(file.content), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    // the old clients were never closed. evict so a long run does not run out of sockets
+                    client.connectionPool().evictAll();
+                }
+            }
+        };
+
+        abstract void call(int i);
+
+        private static final Map<Integer, Repository> repositories = new ConcurrentHashMap<>();
+
+        // fetched once so the other operations only measure their own call
+        static Repository repository(int i) {
+            return repositories.computeIfAbsent(i % 30, n -> Repository.get(ORG, "service-" + n));
+        }
+    }
+
+    /**
+     * the measurements of one operation on one thread, merged after the run.
+     */
+    private static final class Stats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private long allocated;
+        private final Map<String, Integer> errors = new HashMap<>();
+
+        void record(long nanos, long bytes) {
+            if(count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+            allocated += bytes;
+        }
+
+        void merge(Stats other) {
+            for(int i = 0; i < other.count; i++) record(other.latencies[i], 0);
+            allocated += other.allocated;
+            other.errors.forEach((error, count) -> errors.merge(error, count, Integer::sum));
+        }
+
+        long[] latencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        int errorCount() {
+            int total = 0;
+            for(int errors : errors.values()) total += errors;
+            return total;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.loadtest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+import com.squareup.moshi.Types;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a local stand-in for api.github.com that serves recorded fixtures.
+ *
+ * <p>
+ *     it answers the endpoints used by {@link LoadTest} with the rate limit headers, etags and
+ *     pagination {@code Link} headers of the real api, after a configurable latency, with an optional share of slow calls.
+ *     a configurable share of calls fail with a 403 secondary rate limit or a 5xx error instead.
+ * </p>
+ */
+public class StandInServer {
+
+    static {
+        // without it the jdk server waits for delayed acks, adding about 40 ms to every call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static final int RATE_LIMIT = 5000;
+    private static final long WINDOW = TimeUnit.HOURS.toMillis(1);
+
+    private final List<String> repositories;
+    private final List<String> branches;
+    private final String file;
+    private final String readMe;
+    private final String readMeJson;
+
+    private int latency = 0;
+    private int jitter = 0;
+    private double slowRate = 0;
+    private int slowLatency = 0;
+    private Semaphore capacity;
+    private double secondaryLimitRate = 0;
+    private double serverErrorRate = 0;
+
+    private final AtomicInteger remaining = new AtomicInteger(RATE_LIMIT);
+    private final AtomicLong reset = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * creates a stand-in serving the fixtures on the classpath.
+     */
+    public StandInServer() {
+        Moshi moshi = new Moshi.Builder().build();
+        JsonAdapter<List<Object>> list = moshi.adapter(Types.newParameterizedType(List.class, Object.class));
+        JsonAdapter<Object> element = moshi.adapter(Object.class);
+        try {
+            repositories = split(list.fromJson(fixture("repositories.json")), element);
+            branches = split(list.fromJson(fixture("branches.json")), element);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        file = fixture("file.json");
+        readMe = fixture("readme.md");
+        Map<String, Object> contents = new LinkedHashMap<>();
+        contents.put("type", "file");
+        contents.put("encoding", "base64");
+        contents.put("size", readMe.length());
+        contents.put("name", "README.md");
+        contents.put("path", "README.md");
+        contents.put("content", Base64.getMimeEncoder(60, new byte[]{'\n'}).encodeToString(readMe.getBytes(StandardCharsets.UTF_8)));
+        readMeJson = element.toJson(contents);
+    }
+
+    private static List<String> split(List<Object> items, JsonAdapter<Object> adapter) {
+        List<String> json = new ArrayList<>();
+        for(Object item : items) json.add(adapter.toJson(item));
+        return json;
+    }
+
+    private static String fixture(String name) {
+        try(InputStream in = StandInServer.class.getResourceAsStream("/fixtures/" + name)) {
+            if(in == null) throw new IllegalArgumentException("no fixture " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * sets the time taken to answer each call.
+     * @param latency the base latency in milliseconds
+     * @param jitter the maximum random latency added on top, in milliseconds
+     * @return this server for chaining
+     */
+    public StandInServer setLatency(int latency, int jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * makes a share of calls much slower than the rest, like calls stuck on a slow connection or backend.
+     * @param rate the share, between 0 and 1
+     * @param latency the latency of the slow calls in milliseconds, instead of the usual latency
+     * @return this server for chaining
+     */
+    public StandInServer setSlowCalls(double rate, int latency) {
+        this.slowRate = rate;
+        this.slowLatency = latency;
+        return this;
+    }
+
+    /**
+     * limits the calls the server works on at once. calls past the capacity queue up, so their latency rises
+     * like that of an overloaded server.
+     * @param calls the capacity. 0 for no limit.
+     * @return this server for chaining
+     */
+    public StandInServer setCapacity(int calls) {
+        this.capacity = calls > 0 ? new Semaphore(calls, true) : null;
+        return this;
+    }
+
+    /**
+     * sets the share of calls answered with a 403 secondary rate limit error.
+     * @param rate the share, between 0 and 1
+     * @return this server for chaining
+     */
+    public StandInServer setSecondaryLimitRate(double rate) {
+        this.secondaryLimitRate = rate;
+        return this;
+    }
+
+    /**
+     * sets the share of calls answered with a 502 or 503 error.
+     * @param rate the share, between 0 and 1
+     * @return this server for chaining
+     */
+    public StandInServer setServerErrorRate(double rate) {
+        this.serverErrorRate = rate;
+        return this;
+    }
+
+    /**
+     * starts the server on a free local port.
+     * @throws IOException if the server cannot be started
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("stand-in-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * stops the server.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * get the root url to pass to {@link com.weebkun.github.Github#setRoot(String)}.
+     * @return the root url
+     */
+    public String getRoot() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * get the number of calls answered.
+     * @return the number of calls
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try(InputStream body = exchange.getRequestBody()) {
+            body.readAllBytes();
+        }
+        requests.incrementAndGet();
+        Semaphore capacity = this.capacity;
+        if(capacity != null) capacity.acquireUninterruptibly();
+        try {
+            answer(exchange);
+        } finally {
+            if(capacity != null) capacity.release();
+        }
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        int delay = ThreadLocalRandom.current().nextDouble() < slowRate
+                ? slowLatency
+                : latency + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+        if(delay > 0) Uninterruptibles.sleepUninterruptibly(delay, TimeUnit.MILLISECONDS);
+
+        rateLimit(exchange);
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if(roll < secondaryLimitRate) {
+            exchange.getResponseHeaders().set("Retry-After", "60");
+            send(exchange, 403, "{\"message\":\"You have exceeded a secondary rate limit. Please wait a few minutes before you try again.\"}");
+            return;
+        }
+        if(roll < secondaryLimitRate + serverErrorRate) {
+            send(exchange, roll < secondaryLimitRate + serverErrorRate / 2 ? 502 : 503, "{\"message\":\"Server Error\"}");
+            return;
+        }
+
+        URI uri = exchange.getRequestURI();
+        String[] path = uri.getPath().substring(1).split("/");
+        Map<String, String> query = query(uri.getRawQuery());
+        if(!"GET".equals(exchange.getRequestMethod())) {
+            send(exchange, 404, "{\"message\":\"Not Found\"}");
+        } else if(path.length == 3 && "repos".equals(path[0])) {
+            send(exchange, 200, repositories.get(Math.floorMod(path[2].hashCode(), repositories.size())));
+        } else if(path.length == 4 && "repos".equals(path[0]) && "branches".equals(path[3])) {
+            page(exchange, uri, query, branches);
+        } else if(path.length == 3 && "orgs".equals(path[0]) && "repos".equals(path[2])) {
+            page(exchange, uri, query, repositories);
+        } else if(path.length > 4 && "repos".equals(path[0]) && "contents".equals(path[3])) {
+            send(exchange, 200, file);
+        } else if(path.length == 4 && "repos".equals(path[0]) && "readme".equals(path[3])) {
+            String accept = String.valueOf(exchange.getRequestHeaders().get("Accept"));
+            if(accept.contains(".raw") || accept.contains(".html")) {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                send(exchange, 200, readMe);
+            } else {
+                // without a raw or html media type, the readme comes as a base64 encoded contents object
+                send(exchange, 200, readMeJson);
+            }
+        } else {
+            send(exchange, 404, "{\"message\":\"Not Found\"}");
+        }
+    }
+
+    private void rateLimit(HttpExchange exchange) {
+        long now = System.currentTimeMillis();
+        long windowEnd = reset.get();
+        if(now >= windowEnd && reset.compareAndSet(windowEnd, now + WINDOW)) remaining.set(RATE_LIMIT);
+        // the stand-in never refuses calls for the primary limit, it only reports it
+        int left = Math.max(remaining.decrementAndGet(), 0);
+        exchange.getResponseHeaders().set("X-RateLimit-Limit", Integer.toString(RATE_LIMIT));
+        exchange.getResponseHeaders().set("X-RateLimit-Remaining", Integer.toString(left));
+        exchange.getResponseHeaders().set("X-RateLimit-Used", Integer.toString(RATE_LIMIT - left));
+        exchange.getResponseHeaders().set("X-RateLimit-Reset", Long.toString(reset.get() / 1000));
+        exchange.getResponseHeaders().set("X-RateLimit-Resource", "core");
+    }
+
+    private void page(HttpExchange exchange, URI uri, Map<String, String> query, List<String> items) throws IOException {
+        int perPage = Math.min(parse(query.get("per_page"), 30), 100);
+        int page = Math.max(parse(query.get("page"), 1), 1);
+        int last = Math.max((items.size() + perPage - 1) / perPage, 1);
+        int from = Math.min((page - 1) * perPage, items.size());
+        int to = Math.min(from + perPage, items.size());
+
+        String base = getRoot() + uri.getPath() + "?per_page=" + perPage + "&page=";
+        List<String> links = new ArrayList<>();
+        if(page < last) links.add("<" + base + (page + 1) + ">; rel=\"next\"");
+        if(page < last) links.add("<" + base + last + ">; rel=\"last\"");
+        if(page > 1) links.add("<" + base + 1 + ">; rel=\"first\"");
+        if(page > 1) links.add("<" + base + (page - 1) + ">; rel=\"prev\"");
+        if(!links.isEmpty()) exchange.getResponseHeaders().set("Link", String.join(", ", links));
+        send(exchange, 200, "[" + String.join(",", items.subList(from, to)) + "]");
+    }
+
+    private static int parse(String value, int fallback) {
+        try {
+            return value != null ? Integer.parseInt(value) : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static Map<String, String> query(String query) {
+        Map<String, String> params = new HashMap<>();
+        if(query == null) return params;
+        for(String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if(equals > 0) params.put(param.substring(0, equals), param.substring(equals + 1));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if(!exchange.getResponseHeaders().containsKey("Content-Type")) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        }
+        if(status == 200) exchange.getResponseHeaders().set("ETag", "W/\"" + Integer.toHexString(body.hashCode()) + "\"");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -16,13 +16,17 @@ Copyright 2020 weebkun
 
 package com.weebkun.auth;
 
-import com.squareup.moshi.JsonAdapter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.weebkun.github.Github;
 import com.weebkun.github.MediaTypes;
+import com.weebkun.utils.AuthenticationFailedException;
 import com.weebkun.utils.HttpErrorException;
+import com.weebkun.utils.JsonBody;
 import okhttp3.*;
 
 import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * authenticates to github using OAuth tokens
@@ -32,6 +36,9 @@ public class OAuth {
     private static boolean authorised = false;
     private static String token;
     private static OkHttpClient client = new OkHttpClient();
+    // only used to wait between polls, the requests themselves run on the client's dispatcher
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("github-oauth").setDaemon(true).build());
 
     static {
         // this gay shit finally works
@@ -43,82 +50,158 @@ public class OAuth {
 
     /**
      * tries to ask a user for authorisation.
+     * blocks until the user authorises this app.
      * @param clientId the oauth client id
      * @param scopes an array containing the scopes you would like to request. {@link Scopes}
+     * @throws AuthenticationFailedException if the user denied access or the code expired
      * @see Scopes for more info
+     * @see #authenticateAsync(String, String[])
      */
     public static void authenticate(String clientId, String[] scopes) {
-        String code = sendRequest(clientId, scopes);
-        AuthenticationStatus status = poll(clientId, code);
-        while(!authorised) {
-            status = poll(clientId, code);
+        try {
+            token = authenticateAsync(clientId, scopes).join();
+            authorised = true;
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
         }
     }
 
-    private static String sendRequest(String clientId, String[] scopes) {
+    /**
+     * asks a user for authorisation without blocking.
+     * the verification url and user code are printed to the console.
+     * @param clientId the oauth client id
+     * @param scopes an array containing the scopes you would like to request. {@link Scopes}
+     * @return a future that completes with the access token
+     * @see #authenticateAsync(String, String[], Consumer)
+     */
+    public static CompletableFuture<String> authenticateAsync(String clientId, String[] scopes) {
+        return authenticateAsync(clientId, scopes,
+                code -> System.out.printf("go to %s for verification. the code is %s\n", code.verification_uri, code.user_code));
+    }
+
+    /**
+     * asks a user for authorisation without blocking.
+     * no thread is held while waiting for the user: the token endpoint is polled on a shared scheduler,
+     * at the interval given by github, and the interval is increased whenever github responds with slow_down.
+     * the returned token is not stored in this class, so many users can be authenticated at once.
+     * cancel the future to stop polling.
+     * @param clientId the oauth client id
+     * @param scopes an array containing the scopes you would like to request. {@link Scopes}
+     * @param prompt called with the verification url and user code to show the user
+     * @return a future that completes with the access token, or completes exceptionally with an
+     * {@link AuthenticationFailedException} if the user denied access or the code expired
+     */
+    public static CompletableFuture<String> authenticateAsync(String clientId, String[] scopes, Consumer<ResponseDeviceCode> prompt) {
+        CompletableFuture<String> future = new CompletableFuture<>();
         // set body params
-        String json = String.format("{" +
-                "\"client_id\": \"%s\"," +
-                "\"scope\": \"%s\"" +
-                "}", clientId, String.join(" ", scopes));
-        RequestBody body = RequestBody.create(json, MediaType.get("application/json; charset=utf-8"));
+        RequestBody body = JsonBody.object()
+                .put("client_id", clientId)
+                .put("scope", String.join(" ", scopes));
         Request request = new Request.Builder()
                 .url("https://github.com/login/device/code")
                 .post(body)
                 .build();
-        String code = "";
-        // main bulk of code to send the authentication requests
-        try (Response response = client.newCall(request).execute()) {
-            if(response.code() != 200) throw new HttpErrorException(response);
-            JsonAdapter<ResponseDeviceCode> adapter = Github.getMoshi().adapter(ResponseDeviceCode.class);
-            ResponseDeviceCode res = adapter.fromJson(response.body().source());
-            System.out.printf("go to %s for verification. the code is %s\n", res.verification_uri, res.user_code);
-            code = res.device_code;
-            // poll github if user has authorised already
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return code;
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try(response) {
+                    if(response.code() != 200) throw new HttpErrorException(response);
+                    ResponseDeviceCode code = Github.getMoshi().adapter(ResponseDeviceCode.class).fromJson(response.body().source());
+                    prompt.accept(code);
+                    new DeviceFlow(clientId, code, future).schedule();
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
     }
 
-    private static AuthenticationStatus poll(String clientId, String code) {
-        // sleep for 5 seconds
-        try {
-            Thread.sleep(5000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * polls the token endpoint for one device code until the user authorises, denies or the code expires.
+     * each poll is scheduled after the previous response, so polls never overlap.
+     */
+    private static final class DeviceFlow implements Callback {
+        private final String clientId;
+        private final String deviceCode;
+        private final long expiresAt;
+        private final CompletableFuture<String> future;
+        private long interval;
+
+        private DeviceFlow(String clientId, ResponseDeviceCode code, CompletableFuture<String> future) {
+            this.clientId = clientId;
+            this.deviceCode = code.device_code;
+            this.expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(code.expires_in);
+            // github defaults to 5 seconds
+            this.interval = code.interval > 0 ? code.interval : 5;
+            this.future = future;
         }
-        String json = String.format("{" +
-                "\"client_id\": \"%s\"," +
-                "\"device_code\": \"%s\"," +
-                "\"grant_type\": \"urn:ietf:params:oauth:grant-type:device_code\"" +
-                "}", clientId, code);
-        RequestBody body = RequestBody.create(json, MediaType.get("application/json"));
-        Request request = new Request.Builder()
-                .url("https://github.com/login/oauth/access_token")
-                .post(body)
-                .build();
-        try (Response response = client.newCall(request).execute()) {
-            JsonAdapter<TokenResponse> adapter = Github.getMoshi().adapter(TokenResponse.class);
-            TokenResponse res = adapter.fromJson(response.body().source());
-            if(res.access_token != null) {
-                // success
-                token = res.access_token;
-                authorised = true;
-                return AuthenticationStatus.success;
+
+        private void schedule() {
+            if(future.isDone()) return;
+            if(System.nanoTime() + TimeUnit.SECONDS.toNanos(interval) > expiresAt) {
+                future.completeExceptionally(new AuthenticationFailedException(AuthenticationStatus.expired_token,
+                        "the device code expired before the user authorised this app."));
+                return;
+            }
+            scheduler.schedule(this::poll, interval, TimeUnit.SECONDS);
+        }
+
+        private void poll() {
+            if(future.isDone()) return;
+            RequestBody body = JsonBody.object()
+                    .put("client_id", clientId)
+                    .put("device_code", deviceCode)
+                    .put("grant_type", "urn:ietf:params:oauth:grant-type:device_code");
+            Request request = new Request.Builder()
+                    .url("https://github.com/login/oauth/access_token")
+                    .post(body)
+                    .build();
+            client.newCall(request).enqueue(this);
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            // a network error does not end the flow, try again at the next interval
+            schedule();
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            TokenResponse res;
+            try(response) {
+                res = Github.getMoshi().adapter(TokenResponse.class).fromJson(response.body().source());
+            } catch (IOException | RuntimeException e) {
+                schedule();
+                return;
+            }
+            if(res == null) {
+                schedule();
+            } else if(res.access_token != null) {
+                future.complete(res.access_token);
+            } else if("authorization_pending".equals(res.error)) {
+                schedule();
+            } else if("slow_down".equals(res.error)) {
+                // github sends the new interval, otherwise add 5 seconds as the spec requires
+                interval = res.interval > interval ? res.interval : interval + 5;
+                schedule();
             } else {
-                // error occurred
-                System.err.println(res.error);
-                authorised = false;
-                // poll again
-                if(res.error.equals("authorization_pending")) return poll(clientId, code);
-                // expired token, request another authorisation
-                return AuthenticationStatus.expired_token;
+                AuthenticationStatus status;
+                try {
+                    status = AuthenticationStatus.valueOf(res.error);
+                } catch (IllegalArgumentException | NullPointerException e) {
+                    status = AuthenticationStatus.access_denied;
+                }
+                future.completeExceptionally(new AuthenticationFailedException(status,
+                        res.error_description != null ? res.error_description : String.valueOf(res.error)));
             }
-        } catch (IOException | NullPointerException e) {
-            e.printStackTrace();
         }
-        return AuthenticationStatus.success;
     }
 
     /**
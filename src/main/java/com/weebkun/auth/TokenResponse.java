@@ -27,4 +27,8 @@ public class TokenResponse {
     public String error;
     public String error_description;
     public String error_uri;
+    /**
+     * the new minimum interval in seconds between polls. sent with the slow_down error.
+     */
+    public int interval;
 }
\ No newline at end of file
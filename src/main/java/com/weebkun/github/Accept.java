@@ -0,0 +1,61 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the media types to accept for a single request.
+ * attach it to a request as a tag to replace the default accept headers for that request only:
+ * <pre>{@code
+ * Request request = new Request.Builder()
+ *         .url(url)
+ *         .tag(Accept.class, Accept.of(MediaTypes.REPO_RAW))
+ *         .build();
+ * Github.getClient().newCall(request).execute();
+ * }</pre>
+ * this keeps every call on the global client and its connection pool,
+ * instead of building a new client just to change the header.
+ * @see MediaTypes
+ */
+public final class Accept {
+
+    private final List<String> mediaTypes;
+
+    private Accept(List<String> mediaTypes) {
+        this.mediaTypes = mediaTypes;
+    }
+
+    /**
+     * creates an accept tag.
+     * @param mediaTypes the media types to accept, in order of preference
+     * @return the tag
+     */
+    public static Accept of(String... mediaTypes) {
+        return new Accept(Collections.unmodifiableList(Arrays.asList(mediaTypes)));
+    }
+
+    /**
+     * get the media types to accept.
+     * @return the media types
+     */
+    public List<String> getMediaTypes() {
+        return mediaTypes;
+    }
+}
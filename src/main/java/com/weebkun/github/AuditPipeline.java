@@ -0,0 +1,281 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.weebkun.resilience.Priority;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * audits every repository of an organisation in parallel stages.
+ *
+ * <p>
+ *     the repositories are listed page by page, and each repo is passed on to the branches stage,
+ *     which lists its protected branches, and to the alerts stage, which checks if dependency alerts are enabled.
+ *     each protected branch is then passed on to the protection stage, which gets its protection.
+ *     every stage has its own bounded queue and worker pool, so a stage keeps working while the next one is busy
+ *     and only waits when the next stage's queue is full.
+ * </p>
+ * results are passed to the {@link Listener} as soon as they complete.
+ * the progress of each stage can be checked with {@link #getStages()} while the pipeline runs.
+ * its calls are {@link Priority#BULK}, so a {@link com.weebkun.resilience.PriorityDispatcher} lets other calls go first.
+ */
+public class AuditPipeline {
+
+    private static final int PAGE_SIZE = 100;
+
+    private final Stage<String> repositories;
+    private final Stage<Repository> branches;
+    private final Stage<Branch> protection;
+    private final Stage<Repository> alerts;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private Listener listener;
+
+    /**
+     * creates a pipeline with 8 workers for the branches and alerts stages, 16 workers for the protection stage
+     * and a queue of 1000 items per stage.
+     */
+    public AuditPipeline() {
+        this(8, 16, 8, 1000);
+    }
+
+    /**
+     * creates a pipeline.
+     * @param branchWorkers the number of workers listing branches
+     * @param protectionWorkers the number of workers getting branch protections
+     * @param alertWorkers the number of workers checking dependency alerts
+     * @param queueCapacity the number of items each stage can hold before the previous stage waits
+     */
+    public AuditPipeline(int branchWorkers, int protectionWorkers, int alertWorkers, int queueCapacity) {
+        repositories = new Stage<>("repositories", 1, queueCapacity, this::listRepositories);
+        branches = new Stage<>("branches", branchWorkers, queueCapacity, this::listBranches);
+        protection = new Stage<>("protection", protectionWorkers, queueCapacity,
+                branch -> listener.onProtection(branch, branch.getProtection()));
+        alerts = new Stage<>("alerts", alertWorkers, queueCapacity,
+                repo -> listener.onDependencyAlerts(repo, repo.areDependencyAlertsEnabled()));
+    }
+
+    /**
+     * starts auditing an organisation. a pipeline can only be run once.
+     * @param org the name of the organisation
+     * @param listener receives the results. it is called from the worker threads, possibly concurrently.
+     * @return a future that completes when every stage is done
+     * @throws IllegalStateException if this pipeline was already run
+     */
+    public CompletableFuture<Void> run(String org, Listener listener) {
+        if(this.listener != null) throw new IllegalStateException("pipeline already run.");
+        this.listener = listener;
+        repositories.submit(org);
+        return done;
+    }
+
+    /**
+     * gets the stages of this pipeline in order, to check their progress.
+     * @return the stages
+     */
+    public List<Stage<?>> getStages() {
+        return Arrays.asList(repositories, branches, protection, alerts);
+    }
+
+    private void listRepositories(String org) {
+        Options params = new Options();
+        params.perPage = PAGE_SIZE;
+        Repository[] page;
+        do {
+            params.page++;
+            page = Organisation.getRepositories(org, params);
+            for(Repository repo : page) {
+                listener.onRepository(repo);
+                branches.submit(repo);
+                alerts.submit(repo);
+            }
+        } while(page.length == PAGE_SIZE);
+    }
+
+    private void listBranches(Repository repo) {
+        int number = 0;
+        Branch[] page;
+        do {
+            page = repo.listBranches(true, ++number, PAGE_SIZE);
+            for(Branch branch : page) {
+                // branches listed from a repo do not know which repo they belong to
+                branch.owner = repo.owner.getName();
+                branch.repo = repo.name;
+                protection.submit(branch);
+            }
+        } while(page.length == PAGE_SIZE);
+    }
+
+    /**
+     * receives the results of the pipeline.
+     */
+    public interface Listener {
+        /**
+         * called for every repository listed.
+         * @param repository the repository
+         */
+        default void onRepository(Repository repository) {}
+
+        /**
+         * called for every protected branch with its protection.
+         * @param branch the branch
+         * @param protection the branch's protection
+         */
+        default void onProtection(Branch branch, Branch.Protection protection) {}
+
+        /**
+         * called for every repository with its dependency alert status.
+         * @param repository the repository
+         * @param enabled true if dependency alerts are enabled
+         */
+        default void onDependencyAlerts(Repository repository, boolean enabled) {}
+
+        /**
+         * called when an item fails in a stage. the pipeline carries on with the other items.
+         * @param stage the name of the stage
+         * @param item the item that failed. the org name, a {@link Repository} or a {@link Branch}.
+         * @param e the error
+         */
+        default void onError(String stage, Object item, RuntimeException e) {}
+    }
+
+    /**
+     * a stage of the pipeline, with its own worker pool and bounded queue.
+     * @param <T> the type of item this stage works on
+     */
+    public final class Stage<T> {
+        private final String name;
+        private final int workers;
+        private final ThreadPoolExecutor executor;
+        private final Consumer<T> work;
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+
+        private Stage(String name, int workers, int queueCapacity, Consumer<T> work) {
+            this.name = name;
+            this.workers = workers;
+            this.work = work;
+            this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    new ThreadFactoryBuilder().setNameFormat("github-audit-" + name + "-%d").setDaemon(true).build(),
+                    (task, executor) -> {
+                        // wait for space in the queue instead of dropping the item
+                        if(executor.isShutdown()) throw new RejectedExecutionException("pipeline already finished.");
+                        Uninterruptibles.putUninterruptibly(executor.getQueue(), task);
+                    });
+        }
+
+        private void submit(T item) {
+            pending.incrementAndGet();
+            submitted.incrementAndGet();
+            started.compareAndSet(0, System.nanoTime());
+            executor.execute(() -> {
+                Priority.Scope scope = Priority.BULK.enter();
+                try {
+                    work.accept(item);
+                    completed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    listener.onError(name, item, e);
+                } finally {
+                    scope.close();
+                    if(pending.decrementAndGet() == 0) finish();
+                }
+            });
+        }
+
+        /**
+         * get the name of this stage.
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * get the number of workers of this stage.
+         * @return the number of workers
+         */
+        public int getWorkers() {
+            return workers;
+        }
+
+        /**
+         * get the number of items passed to this stage so far.
+         * @return the number of items submitted
+         */
+        public long getSubmitted() {
+            return submitted.get();
+        }
+
+        /**
+         * get the number of items this stage has completed successfully.
+         * @return the number of items completed
+         */
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        /**
+         * get the number of items that failed in this stage.
+         * @return the number of items failed
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * get the number of items waiting in this stage's queue.
+         * @return the number of items queued
+         */
+        public int getQueued() {
+            return executor.getQueue().size();
+        }
+
+        /**
+         * get the number of items completed per second since this stage received its first item.
+         * @return the throughput
+         */
+        public double getThroughput() {
+            long start = started.get();
+            if(start == 0) return 0;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return seconds > 0 ? (completed.get() + failed.get()) / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d/%d done, %d failed, %d queued, %.1f/s",
+                    name, completed.get() + failed.get(), submitted.get(), failed.get(), getQueued(), getThroughput());
+        }
+    }
+
+    private void finish() {
+        for(Stage<?> stage : getStages()) stage.executor.shutdown();
+        done.complete(null);
+    }
+}
@@ -18,6 +18,7 @@ package com.weebkun.github;
 
 import com.squareup.moshi.Json;
 import com.squareup.moshi.ToJson;
+import com.weebkun.utils.JsonBody;
 
 import java.util.Arrays;
 import java.util.stream.Collectors;
@@ -45,7 +46,7 @@ public class Branch {
     public String protection_url;
 
     protected String getEndPoint(String endPoint) {
-        return String.format("/repos/%s/%s/branches/%s/%s", owner, repo, name, endPoint);
+        return String.format("/repos/%s/%s/branches/%s%s", owner, repo, name, endPoint);
     }
 
     /**
@@ -53,8 +54,15 @@ public class Branch {
      * @return the branch's protection status
      */
     public Protection getProtection() {
-        Protection protection = Github.getNetworkUtil().get(getEndPoint("/protection"),
-        Protection.class);
+        return EntityCache.read(Protection.class, getEndPoint("/protection"), this::bind);
+    }
+
+    /**
+     * attaches a protection object to this branch so that its calls target this branch.
+     * @param protection the protection object
+     * @return the same protection object
+     */
+    protected Protection bind(Protection protection) {
         protection.owner = owner;
         protection.repo = repo;
         protection.name = name;
@@ -63,7 +71,9 @@ public class Branch {
     }
 
     public void rename(String name) {
-        Github.getNetworkUtil().post(getEndPoint("/rename"), String.format("{\"new_name\": \"%s\"}", name));
+        Github.getNetworkUtil().post(getEndPoint("/rename"), JsonBody.object().put("new_name", name));
+        // the default branch of the repo may be the one renamed
+        EntityCache.repositoryChanged(owner, repo);
     }
 
     /**
@@ -87,8 +97,10 @@ public class Branch {
          * updates this branch's protection policies
          */
         public void update() {
+            // the api requires every top level key to be present, even when null
             Github.getNetworkUtil().put(branch.getEndPoint("/protection"),
-                    Github.getMoshi().adapter(Protection.class).toJson(this));
+                    JsonBody.of(Github.getMoshi().adapter(Protection.class).serializeNulls(), this));
+            changed();
         }
 
         /**
@@ -97,6 +109,14 @@ public class Branch {
          */
         public void disable() {
             Github.getNetworkUtil().delete(branch.getEndPoint("/protection"));
+            changed();
+        }
+
+        /**
+         * drops this protection and its branch from the entity cache after a change.
+         */
+        private void changed() {
+            EntityCache.branchChanged(owner, repo);
         }
 
         /**
@@ -115,6 +135,7 @@ public class Branch {
         public void enforceAdmins(boolean enforce) {
             if(enforce) Github.getNetworkUtil().post(branch.getEndPoint("/protection/enforce_admins"), "");
             else Github.getNetworkUtil().delete(branch.getEndPoint("/protection/enforce_admins"));
+            changed();
         }
 
         /**
@@ -134,8 +155,9 @@ public class Branch {
          */
         public void updatePullRequestReviewPolicy(RequiredPullRequestReviews policy, boolean enabled) {
             if(enabled) Github.getNetworkUtil().patch(branch.getEndPoint("/protection/required_pull_request_reviews"),
-                    Github.getMoshi().adapter(RequiredPullRequestReviews.class).toJson(policy));
+                    JsonBody.of(Github.getMoshi().adapter(RequiredPullRequestReviews.class), policy));
             else Github.getNetworkUtil().delete(branch.getEndPoint("/protection/required_pull_request_reviews"));
+            changed();
         }
 
         /**
@@ -156,6 +178,7 @@ public class Branch {
             if(enabled) Github.getNetworkUtil().post(branch.getEndPoint("/protection/required_signatures"),
                     "");
             else Github.getNetworkUtil().delete(branch.getEndPoint("/protection/required_signatures"));
+            changed();
         }
 
         public RequiredStatusChecks getStatusCheckPolicy() {
@@ -165,8 +188,9 @@ public class Branch {
 
         public void updateStatusCheckPolicy(RequiredStatusChecks policy, boolean enabled) {
             if(enabled) Github.getNetworkUtil().patch(branch.getEndPoint("/protection/required_status_checks"),
-                    Github.getMoshi().adapter(RequiredStatusChecks.class).toJson(policy));
+                    JsonBody.of(Github.getMoshi().adapter(RequiredStatusChecks.class), policy));
             else Github.getNetworkUtil().delete(branch.getEndPoint("/protection/required_status_checks"));
+            changed();
         }
 
         public String[] getStatusCheckContexts() {
@@ -176,7 +200,8 @@ public class Branch {
 
         public void addStatusCheckContexts(String[] contexts) {
             Github.getNetworkUtil().post(branch.getEndPoint("/protection/required_status_checks/contexts"),
-                    Github.getMoshi().adapter(String[].class).toJson(contexts));
+                    JsonBody.of(Github.getMoshi().adapter(String[].class), contexts));
+            changed();
         }
 
         /**
@@ -185,12 +210,14 @@ public class Branch {
          */
         public void setStatusCheckContexts(String[] contexts) {
             Github.getNetworkUtil().put(branch.getEndPoint("/protection/required_status_checks/contexts"),
-                    Github.getMoshi().adapter(String[].class).toJson(contexts));
+                    JsonBody.of(Github.getMoshi().adapter(String[].class), contexts));
+            changed();
         }
 
         public void removeStatusCheckContexts(String[] contexts) {
             Github.getNetworkUtil().delete(branch.getEndPoint("/protection/required_status_checks/contexts"),
-                    Github.getMoshi().adapter(String[].class).toJson(contexts));
+                    JsonBody.of(Github.getMoshi().adapter(String[].class), contexts));
+            changed();
         }
 
         /**
@@ -265,9 +292,11 @@ public class Branch {
          */
         public static class UpdateAdapter {
 
+            @ToJson
             public ProtectionJson.RequiredPullRequestReviews toJson(Protection.RequiredPullRequestReviews requiredPullRequestReviews) {
                 return new ProtectionJson.RequiredPullRequestReviews(
-                        new ProtectionJson.DismissalRestrictions(requiredPullRequestReviews.dismissal_restrictions),
+                        requiredPullRequestReviews.dismissal_restrictions != null ?
+                                new ProtectionJson.DismissalRestrictions(requiredPullRequestReviews.dismissal_restrictions) : null,
                         requiredPullRequestReviews.dismiss_stale_reviews,
                         requiredPullRequestReviews.require_code_owner_reviews,
                         requiredPullRequestReviews.required_approving_review_count);
@@ -280,16 +309,14 @@ public class Branch {
                 json.required_status_checks = protection.required_status_checks != null ? new ProtectionJson.RequiredStatusChecks(
                         protection.required_status_checks.strict,
                         protection.required_status_checks.contexts) : null;
-                json.enforce_admins = protection.enforce_admins.enabled;
-                json.required_pull_request_reviews = new ProtectionJson.RequiredPullRequestReviews(
-                        new ProtectionJson.DismissalRestrictions(protection.required_pull_request_reviews.dismissal_restrictions),
-                        protection.required_pull_request_reviews.dismiss_stale_reviews,
-                        protection.required_pull_request_reviews.require_code_owner_reviews,
-                        protection.required_pull_request_reviews.required_approving_review_count);
-                json.restrictions = new UpdateAdapter.ProtectionJson.Restrictions(protection.restrictions);
-                json.required_linear_history = protection.required_linear_history.enabled;
-                json.allow_force_pushes = protection.allow_force_pushes.enabled;
-                json.allow_deletions = protection.allow_deletions.enabled;
+                json.enforce_admins = protection.enforce_admins != null && protection.enforce_admins.enabled;
+                json.required_pull_request_reviews = protection.required_pull_request_reviews != null ?
+                        toJson(protection.required_pull_request_reviews) : null;
+                json.restrictions = protection.restrictions != null ?
+                        new UpdateAdapter.ProtectionJson.Restrictions(protection.restrictions) : null;
+                json.required_linear_history = protection.required_linear_history != null && protection.required_linear_history.enabled;
+                json.allow_force_pushes = protection.allow_force_pushes != null && protection.allow_force_pushes.enabled;
+                json.allow_deletions = protection.allow_deletions != null && protection.allow_deletions.enabled;
                 return json;
             }
 
@@ -0,0 +1,47 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import java.util.Locale;
+
+/**
+ * lower cases the parts of api paths that github does not treat as case sensitive, so they can be used as cache keys.
+ */
+final class CaseFolding {
+
+    private CaseFolding() {}
+
+    /**
+     * lower cases the owner and repo names of {@code /repos/{owner}/{repo}} paths,
+     * and the login of {@code /users/{user}} and {@code /orgs/{org}} paths.
+     * the rest, such as branch names and file paths, is case sensitive and kept as given.
+     * @param path the path, optionally with a query and a root path such as {@code /api/v3}
+     * @return the path with its names lower cased
+     */
+    static String foldNames(String path) {
+        int query = path.indexOf('?');
+        String[] segments = (query < 0 ? path : path.substring(0, query)).split("/", -1);
+        for(int i = 0; i < segments.length; i++) {
+            int names = segments[i].equals("repos") ? 2 : segments[i].equals("users") || segments[i].equals("orgs") ? 1 : 0;
+            if(names == 0) continue;
+            for(int j = i + 1; j <= i + names && j < segments.length; j++) segments[j] = segments[j].toLowerCase(Locale.ROOT);
+            // only the first names in the path, e.g. not the repos of /orgs/{org}/repos
+            break;
+        }
+        return String.join("/", segments) + (query < 0 ? "" : path.substring(query));
+    }
+}
@@ -0,0 +1,479 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.weebkun.resilience.Priority;
+import com.weebkun.utils.HttpErrorException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * keeps the repositories, branches, branch protections, users, organisations and teams read through the library in memory,
+ * so reading the same ones again does not call the api. lists of branches and contributors, languages and the contents
+ * of repos are kept too.
+ *
+ * <p>
+ *     entries are keyed by the endpoint they are read from, such as {@code /repos/owner/repo},
+ *     ignoring the case of owner, repo, user and organisation names. branch names and paths are case sensitive.
+ *     each type has its own time to live (default: 1 minute), and the least recently used entries are evicted
+ *     once the cache holds {@code maximumSize} of them.
+ *     concurrent reads of an entry that is not cached send a single call.
+ * </p>
+ * <p>
+ *     with a stale window, an entry past its time to live is still returned at once for that long,
+ *     while a single conditional request revalidates it in the background. a 304 not modified keeps the entry
+ *     and does not count against the rate limit. entries older than the time to live and the stale window
+ *     are read again before returning, as without a stale window.
+ * </p>
+ * <p>
+ *     the cache can be written to a file with {@link #writeSnapshot(File)} before a restart, and loaded back with
+ *     {@link #loadSnapshot(File)} so the first reads after it do not wait for the api. loaded entries keep their age and etag,
+ *     so expired ones are revalidated with a conditional request when they are next read.
+ * </p>
+ * <p>
+ *     changes made through the library, such as {@link Repository.Adapter#update()}, {@link Branch#rename(String)}
+ *     or {@link Branch.Protection#update()}, drop the entries they change, so the next read sees them.
+ *     a read still in flight when its entry is dropped is not cached, and later readers do not wait for it.
+ *     changes made elsewhere are seen once the entry expires, or at once when webhook deliveries are passed to
+ *     {@link com.weebkun.webhook.WebhookReceiver#invalidating(EntityCache)}.
+ *     the same instance is returned to every reader, so do not modify cached objects.
+ * </p>
+ *
+ * <pre>{@code
+ * Github.setEntityCache(new EntityCache(5000)
+ *         .setTtl(Branch.Protection.class, 10, TimeUnit.SECONDS)
+ *         .setStaleWindow(5, TimeUnit.MINUTES));
+ * }</pre>
+ */
+public final class EntityCache {
+
+    private static final ExecutorService revalidator = Executors.newFixedThreadPool(4,
+            new ThreadFactoryBuilder().setNameFormat("github-revalidate-%d").setDaemon(true).build());
+    private static final int STRIPES = 1024;
+
+    private final Cache<Key, Entry> cache;
+    // when each path was last invalidated, by hash. a collision only makes an entry read again sooner
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+    private final AtomicLong cleared = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Class<?>, Long> ttls = new ConcurrentHashMap<>();
+    private volatile long defaultTtl = TimeUnit.MINUTES.toNanos(1);
+    private volatile long staleWindow;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    /**
+     * creates a cache of up to 10000 entries.
+     */
+    public EntityCache() {
+        this(10_000);
+    }
+
+    /**
+     * creates a cache.
+     * @param maximumSize the most entries kept
+     */
+    public EntityCache(long maximumSize) {
+        if(maximumSize < 1) throw new IllegalArgumentException("maximumSize must be at least 1.");
+        cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * sets how long entries of a type are used before they are read again.
+     * @param type the type, such as {@code Repository.class}
+     * @param ttl the time
+     * @param unit the unit of the time
+     * @return this cache for chaining
+     */
+    public EntityCache setTtl(Class<?> type, long ttl, TimeUnit unit) {
+        ttls.put(type, unit.toNanos(ttl));
+        return this;
+    }
+
+    /**
+     * sets how long entries of types without a ttl of their own are used.
+     * default: 1 minute
+     * @param ttl the time
+     * @param unit the unit of the time
+     * @return this cache for chaining
+     */
+    public EntityCache setDefaultTtl(long ttl, TimeUnit unit) {
+        this.defaultTtl = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * sets how long past its ttl an entry is still returned while it is revalidated in the background.
+     * default: 0, entries past their ttl are always read again before returning
+     * @param window the time
+     * @param unit the unit of the time
+     * @return this cache for chaining
+     */
+    public EntityCache setStaleWindow(long window, TimeUnit unit) {
+        if(window < 0) throw new IllegalArgumentException("the stale window cannot be negative.");
+        this.staleWindow = unit.toNanos(window);
+        return this;
+    }
+
+    /**
+     * gets an entry, reading it with {@code loader} if it is not cached or expired.
+     * results of null are returned but not cached.
+     * @param type the type of the entry
+     * @param key the key of the entry
+     * @param loader reads the entry from the api
+     * @param <T> the type of the entry
+     * @return the entry
+     */
+    public <T> T get(Class<T> type, String key, Supplier<T> loader) {
+        return lookup(type, key, (previous, generation) -> new Entry(loader.get(), null, generation));
+    }
+
+    /**
+     * gets an entry, reading it from an endpoint with a conditional request if it is not cached or expired.
+     * @param bind called with each new value read, before it is cached
+     */
+    <T> T get(Class<T> type, String endPoint, UnaryOperator<T> bind) {
+        return lookup(type, endPoint, (previous, generation) -> {
+            Network.Conditional<T> response = Github.getNetworkUtil().getConditional(endPoint, previous != null ? previous.etag : null, type);
+            if(response == null) return new Entry(null, null, generation);
+            if(!response.isModified()) {
+                return previous != null ? new Entry(previous.value, previous.etag, generation) : new Entry(null, null, generation);
+            }
+            return new Entry(bind.apply(response.value), response.etag, generation);
+        });
+    }
+
+    private <T> T lookup(Class<T> type, String key, Reader reader) {
+        Key cacheKey = new Key(type, key);
+        while(true) {
+            long generation = generation(cacheKey.name);
+            Entry entry = cache.getIfPresent(cacheKey);
+            // a read that was in flight when the entry was invalidated can still store what it read before the write
+            if(entry != null && entry.generation < generation) {
+                cache.asMap().remove(cacheKey, entry);
+                entry = null;
+            }
+            if(entry != null && entry.value != null) {
+                long age = System.nanoTime() - entry.written;
+                long ttl = ttl(type);
+                if(age < ttl + staleWindow) {
+                    hits.increment();
+                    if(age >= ttl) revalidate(cacheKey, entry, reader);
+                    return type.cast(entry.value);
+                }
+            }
+            if(entry != null) cache.asMap().remove(cacheKey, entry);
+            // an expired entry still has the etag to revalidate it with
+            Entry previous = entry != null && entry.value != null ? entry : null;
+            boolean[] loaded = new boolean[1];
+            Entry read;
+            try {
+                read = cache.get(cacheKey, () -> {
+                    loaded[0] = true;
+                    // a failed read is handed to the readers waiting on it, but is dropped by the next one
+                    return reader.read(previous, generation);
+                });
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if(e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+            if(read.generation < generation) {
+                // joined a read that started before the entry was invalidated, so it may miss a write this reader made
+                cache.asMap().remove(cacheKey, read);
+                continue;
+            }
+            // readers that waited for another one's read count as hits
+            (loaded[0] ? misses : hits).increment();
+            return type.cast(read.value);
+        }
+    }
+
+    /**
+     * reads a stale entry again in the background, unless it already is.
+     */
+    private void revalidate(Key key, Entry entry, Reader reader) {
+        if(!entry.revalidating.compareAndSet(false, true)) return;
+        Priority priority = Priority.current();
+        revalidator.execute(() -> {
+            Priority.Scope scope = priority.enter();
+            try {
+                Entry fresh = reader.read(entry, generation(key.name));
+                revalidations.increment();
+                // replaced only if it was not dropped by a write in the meantime
+                if(fresh.value != null) cache.asMap().replace(key, entry, fresh);
+            } catch (HttpErrorException e) {
+                // gone or no longer visible, the next read fails the same way
+                cache.asMap().remove(key, entry);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                scope.close();
+                entry.revalidating.set(false);
+            }
+        });
+    }
+
+    /**
+     * caches an entry, replacing any cached one.
+     * @param type the type of the entry
+     * @param key the key of the entry
+     * @param value the entry
+     * @param <T> the type of the entry
+     */
+    public <T> void put(Class<T> type, String key, T value) {
+        Key cacheKey = new Key(type, key);
+        cache.put(cacheKey, new Entry(Objects.requireNonNull(value), null, generation(cacheKey.name)));
+    }
+
+    /**
+     * drops an entry.
+     * @param type the type of the entry
+     * @param key the key of the entry
+     */
+    public void invalidate(Class<?> type, String key) {
+        Key cacheKey = new Key(type, key);
+        invalidated(cacheKey.name);
+        cache.invalidate(cacheKey);
+    }
+
+    /**
+     * drops every entry whose key is a path under another, of any type.
+     * for example {@code /repos/owner/repo} drops the repo and its branches, protections, languages and contributors.
+     * @param path the path
+     */
+    public void invalidatePath(String path) {
+        String start = CaseFolding.foldNames(path);
+        invalidated(start);
+        cache.asMap().keySet().removeIf(key -> key.name.equals(start)
+                || key.name.startsWith(start) && (key.name.charAt(start.length()) == '/' || key.name.charAt(start.length()) == '?'));
+    }
+
+    /**
+     * drops every entry.
+     */
+    public void invalidateAll() {
+        long generation = sequence.incrementAndGet();
+        cleared.accumulateAndGet(generation, Math::max);
+        cache.invalidateAll();
+    }
+
+    /**
+     * moves the generation of a path past every read started so far, so what they read is not cached.
+     */
+    private void invalidated(String path) {
+        long generation = sequence.incrementAndGet();
+        generations.accumulateAndGet(stripe(path.hashCode()), generation, Math::max);
+    }
+
+    /**
+     * get the generation of a key: the last time it, a path above it or the whole cache was invalidated.
+     * entries read at an older generation are dropped.
+     */
+    private long generation(String name) {
+        long generation = cleared.get();
+        // the hash of every prefix that invalidatePath matches, without building the prefixes
+        int hash = 0;
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if(i > 0 && (c == '/' || c == '?')) generation = Math.max(generation, generations.get(stripe(hash)));
+            hash = 31 * hash + c;
+        }
+        return Math.max(generation, generations.get(stripe(hash)));
+    }
+
+    private static int stripe(int hash) {
+        return (hash ^ hash >>> 16) & (STRIPES - 1);
+    }
+
+    /**
+     * writes the entries of this cache to a file in a compact binary format, replacing the file.
+     * entries of types that are not models of this library are left out.
+     * @param file the file
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    public int writeSnapshot(File file) throws IOException {
+        long now = System.nanoTime();
+        long epoch = System.currentTimeMillis();
+        List<EntitySnapshot.Record> records = new ArrayList<>();
+        cache.asMap().forEach((key, entry) -> {
+            if(entry.value == null) return;
+            long read = epoch - TimeUnit.NANOSECONDS.toMillis(now - entry.written);
+            records.add(new EntitySnapshot.Record(key.type, key.name, entry.etag, read, entry.value));
+        });
+        return EntitySnapshot.write(file, records);
+    }
+
+    /**
+     * loads the entries written with {@link #writeSnapshot(File)}. entries already cached are kept.
+     * entries whose class changed since they were written are left out.
+     * @param file the file
+     * @return the number of entries loaded
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public int loadSnapshot(File file) throws IOException {
+        long now = System.nanoTime();
+        long epoch = System.currentTimeMillis();
+        int[] loaded = new int[1];
+        EntitySnapshot.read(file, record -> {
+            long age = TimeUnit.MILLISECONDS.toNanos(Math.max(epoch - record.read, 0));
+            Key key = new Key(record.type, record.key);
+            if(cache.asMap().putIfAbsent(key, new Entry(record.value, record.etag, now - age, generation(key.name))) == null) {
+                loaded[0]++;
+            }
+        });
+        return loaded[0];
+    }
+
+    /**
+     * get the number of entries cached, including expired ones not evicted yet.
+     * @return the entries
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * get the number of reads answered from the cache, including stale entries.
+     * @return the hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * get the number of reads that waited for the api.
+     * @return the misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * get the number of stale entries revalidated in the background.
+     * @return the revalidations
+     */
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    private long ttl(Class<?> type) {
+        return ttls.getOrDefault(type, defaultTtl);
+    }
+
+    /**
+     * reads an entity from an endpoint through the cache set with {@link Github#setEntityCache(EntityCache)},
+     * or straight from the api if none is.
+     * @param bind called with each new value read, such as to attach it to its parent
+     */
+    static <T> T read(Class<T> type, String endPoint, UnaryOperator<T> bind) {
+        EntityCache cache = Github.getEntityCache();
+        if(cache != null) return cache.get(type, endPoint, bind);
+        T value = Github.getNetworkUtil().get(endPoint, type);
+        return value != null ? bind.apply(value) : null;
+    }
+
+    /**
+     * drops a repo and everything cached under it, after it was deleted, transferred or changed.
+     */
+    static void repositoryChanged(String owner, String repo) {
+        EntityCache cache = Github.getEntityCache();
+        if(cache != null) cache.invalidatePath(String.format("/repos/%s/%s", owner, repo));
+    }
+
+    /**
+     * drops the branches, protections and branch lists of a repo after a branch or its protection was changed.
+     */
+    static void branchChanged(String owner, String repo) {
+        EntityCache cache = Github.getEntityCache();
+        if(cache != null) cache.invalidatePath(String.format("/repos/%s/%s/branches", owner, repo));
+    }
+
+    private interface Reader {
+        /**
+         * reads an entry.
+         * @param previous the expired or stale entry being replaced, null if there is none
+         * @param generation the generation of the key before reading
+         */
+        Entry read(Entry previous, long generation);
+    }
+
+    private static final class Key {
+        private final Class<?> type;
+        private final String name;
+
+        Key(Class<?> type, String name) {
+            this.type = type;
+            // owner, repo and user names are not case sensitive, branch names and paths are
+            this.name = CaseFolding.foldNames(name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return type == other.type && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + name.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final String etag;
+        // System.nanoTime() when read or last revalidated
+        private final long written;
+        private final long generation;
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        Entry(Object value, String etag, long generation) {
+            this(value, etag, System.nanoTime(), generation);
+        }
+
+        Entry(Object value, String etag, long written, long generation) {
+            this.value = value;
+            this.etag = etag;
+            this.written = written;
+            this.generation = generation;
+        }
+    }
+}
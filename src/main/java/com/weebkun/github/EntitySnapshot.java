@@ -0,0 +1,435 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * reads and writes the entries of an {@link EntityCache} in a compact binary format.
+ *
+ * <p>
+ *     the file is a string table, a table of the classes written with the names of their fields, and the entries.
+ *     every string, including keys, etags and field names, is written once in the string table and referred to by index.
+ *     each entry is its type, key, etag and time read, then its value, prefixed with its length so an entry that
+ *     cannot be read back, such as after its class changed, is skipped. values are tagged, so fields that no longer exist
+ *     are skipped and fields that are new keep their defaults.
+ * </p>
+ * <pre>
+ * magic "GHES", version
+ * strings: count, then (length, utf-8 bytes) each
+ * classes: count, then (name, field count, field names) each
+ * entries: count, then (type, key, etag + 1 or 0, epoch millis read, value length, value) each
+ * </pre>
+ */
+final class EntitySnapshot {
+
+    private static final int MAGIC = 0x47484553; // GHES
+    private static final int VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte STRING = 5;
+    private static final byte OBJECT = 6;
+    private static final byte ARRAY = 7;
+
+    // the fields of every class, in the order they are written
+    private static final ClassValue<Field[]> fields = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> all = new ArrayList<>();
+            for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for(Field field : c.getDeclaredFields()) {
+                    if(Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) continue;
+                    field.setAccessible(true);
+                    all.add(field);
+                }
+            }
+            return all.toArray(new Field[0]);
+        }
+    };
+
+    private EntitySnapshot() {}
+
+    /**
+     * an entry of the cache as it is written.
+     */
+    static final class Record {
+        final Class<?> type;
+        final String key;
+        final String etag;
+        final long read;
+        final Object value;
+
+        /**
+         * @param read when the entry was read or last revalidated, in epoch millis
+         */
+        Record(Class<?> type, String key, String etag, long read, Object value) {
+            this.type = type;
+            this.key = key;
+            this.etag = etag;
+            this.read = read;
+            this.value = value;
+        }
+    }
+
+    /**
+     * checks if values of a type can be written: the models of this library, and arrays of them.
+     */
+    static boolean isSupported(Class<?> type) {
+        while(type.isArray()) type = type.getComponentType();
+        return type.getName().startsWith("com.weebkun.github.") || type == String.class;
+    }
+
+    /**
+     * writes entries to a file, replacing it once the whole file is written.
+     * @return the number of entries written
+     */
+    static int write(File file, Iterable<Record> records) throws IOException {
+        Writer writer = new Writer();
+        Buffer entries = new Buffer();
+        int count = 0;
+        for(Record record : records) {
+            if(!isSupported(record.type)) continue;
+            Buffer value = new Buffer();
+            writer.value(value, record.value);
+            writeVarint(entries, writer.string(record.type.getName()));
+            writeVarint(entries, writer.string(record.key));
+            writeVarint(entries, record.etag != null ? writer.string(record.etag) + 1 : 0);
+            entries.writeLong(record.read);
+            entries.writeInt((int) value.size());
+            entries.writeAll(value);
+            count++;
+        }
+
+        // the class table names its classes and fields, so they go in the string table too
+        for(Class<?> type : writer.classes) {
+            writer.string(type.getName());
+            for(Field field : fields.get(type)) writer.string(field.getName());
+        }
+
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try(BufferedSink sink = Okio.buffer(Okio.sink(temp))) {
+            sink.writeInt(MAGIC);
+            sink.writeByte(VERSION);
+            writeVarint(sink, writer.strings.size());
+            for(String string : writer.strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeVarint(sink, bytes.length);
+                sink.write(bytes);
+            }
+            writeVarint(sink, writer.classes.size());
+            for(Class<?> type : writer.classes) {
+                Field[] typeFields = fields.get(type);
+                writeVarint(sink, writer.string(type.getName()));
+                writeVarint(sink, typeFields.length);
+                for(Field field : typeFields) writeVarint(sink, writer.string(field.getName()));
+            }
+            writeVarint(sink, count);
+            sink.writeAll(entries);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * reads the entries of a file, mapping it into memory.
+     * entries that cannot be read back are skipped.
+     * @return the number of entries read
+     * @throws IOException if the file is not a snapshot or is cut short
+     */
+    static int read(File file, Consumer<Record> consumer) throws IOException {
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if(buffer.remaining() < 5 || buffer.getInt() != MAGIC) throw new IOException(file + " is not an entity snapshot.");
+            if(buffer.get() != VERSION) throw new IOException(file + " is of an unsupported version.");
+
+            String[] strings = new String[varint(buffer)];
+            for(int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[varint(buffer)];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            Schema[] classes = new Schema[varint(buffer)];
+            for(int i = 0; i < classes.length; i++) {
+                String name = strings[varint(buffer)];
+                String[] names = new String[varint(buffer)];
+                for(int j = 0; j < names.length; j++) names[j] = strings[varint(buffer)];
+                classes[i] = new Schema(name, names);
+            }
+
+            Reader reader = new Reader(strings, classes);
+            int entries = varint(buffer);
+            int read = 0;
+            for(int i = 0; i < entries; i++) {
+                String typeName = strings[varint(buffer)];
+                String key = strings[varint(buffer)];
+                int etag = varint(buffer);
+                long time = buffer.getLong();
+                int length = buffer.getInt();
+                int end = buffer.position() + length;
+                try {
+                    Class<?> type = load(typeName);
+                    Object value = reader.value(buffer, type);
+                    if(value != null && type.isInstance(value)) {
+                        consumer.accept(new Record(type, key, etag > 0 ? strings[etag - 1] : null, time, value));
+                        read++;
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    // the class of the entry changed since it was written
+                }
+                buffer.position(end);
+            }
+            return read;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(file + " is cut short or corrupt.", e);
+        }
+    }
+
+    /**
+     * loads a class named in a snapshot. only the models of this library are loaded.
+     */
+    private static Class<?> load(String name) throws ClassNotFoundException {
+        Class<?> type = Class.forName(name, false, EntitySnapshot.class.getClassLoader());
+        if(!isSupported(type)) throw new ClassNotFoundException(name + " is not an entity.");
+        return type;
+    }
+
+    private static final class Writer {
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Map<Class<?>, Integer> classIndex = new HashMap<>();
+        private final List<Class<?>> classes = new ArrayList<>();
+        // objects being written, to cut reference cycles such as a protection and its branch
+        private final Set<Object> writing = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        int string(String string) {
+            Integer index = stringIndex.get(string);
+            if(index != null) return index;
+            stringIndex.put(string, strings.size());
+            strings.add(string);
+            return strings.size() - 1;
+        }
+
+        int type(Class<?> type) {
+            Integer index = classIndex.get(type);
+            if(index != null) return index;
+            classIndex.put(type, classes.size());
+            classes.add(type);
+            return classes.size() - 1;
+        }
+
+        void value(Buffer out, Object value) {
+            if(value == null) {
+                out.writeByte(NULL);
+            } else if(value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.writeByte(INTEGER);
+                long number = ((Number) value).longValue();
+                writeVarint(out, (number << 1) ^ (number >> 63));
+            } else if(value instanceof Character) {
+                out.writeByte(INTEGER);
+                writeVarint(out, (long) (Character) value << 1);
+            } else if(value instanceof Double || value instanceof Float) {
+                out.writeByte(DECIMAL);
+                out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if(value instanceof String) {
+                out.writeByte(STRING);
+                writeVarint(out, string((String) value));
+            } else if(value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                out.writeByte(ARRAY);
+                writeVarint(out, length);
+                for(int i = 0; i < length; i++) value(out, Array.get(value, i));
+            } else if(isSupported(value.getClass()) && writing.add(value)) {
+                try {
+                    out.writeByte(OBJECT);
+                    writeVarint(out, type(value.getClass()));
+                    for(Field field : fields.get(value.getClass())) value(out, field.get(value));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    writing.remove(value);
+                }
+            } else {
+                // not a model of this library, or a cycle
+                out.writeByte(NULL);
+            }
+        }
+    }
+
+    /**
+     * a class as it was written, and its fields matched by name to the class as it is now.
+     */
+    private static final class Schema {
+        private final String name;
+        private final String[] fieldNames;
+        private Class<?> type;
+        private Constructor<?> constructor;
+        private Field[] fields;
+
+        Schema(String name, String[] fieldNames) {
+            this.name = name;
+            this.fieldNames = fieldNames;
+        }
+
+        void resolve() throws ReflectiveOperationException {
+            if(type != null) return;
+            Class<?> type = load(name);
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            Map<String, Field> byName = new HashMap<>();
+            for(Field field : EntitySnapshot.fields.get(type)) byName.putIfAbsent(field.getName(), field);
+            Field[] fields = new Field[fieldNames.length];
+            for(int i = 0; i < fieldNames.length; i++) fields[i] = byName.get(fieldNames[i]);
+            this.constructor = constructor;
+            this.fields = fields;
+            this.type = type;
+        }
+    }
+
+    private static final class Reader {
+        private final String[] strings;
+        private final Schema[] classes;
+
+        Reader(String[] strings, Schema[] classes) {
+            this.strings = strings;
+            this.classes = classes;
+        }
+
+        /**
+         * reads a value.
+         * @param target the type it is read into, used for arrays and numbers
+         */
+        Object value(ByteBuffer in, Class<?> target) throws ReflectiveOperationException {
+            byte tag = in.get();
+            switch(tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INTEGER:
+                    long zigzag = varlong(in);
+                    return number((zigzag >>> 1) ^ -(zigzag & 1), target);
+                case DECIMAL:
+                    double decimal = Double.longBitsToDouble(in.getLong());
+                    return target == float.class || target == Float.class ? (Object) (float) decimal : (Object) decimal;
+                case STRING:
+                    return strings[varint(in)];
+                case ARRAY:
+                    Class<?> component = target.isArray() ? target.getComponentType() : Object.class;
+                    int length = varint(in);
+                    Object array = Array.newInstance(component, length);
+                    for(int i = 0; i < length; i++) {
+                        Object element = value(in, component);
+                        if(element != null && (component.isPrimitive() || component.isInstance(element))) Array.set(array, i, element);
+                    }
+                    return array;
+                case OBJECT:
+                    Schema schema = classes[varint(in)];
+                    schema.resolve();
+                    Object object = schema.constructor.newInstance();
+                    for(Field field : schema.fields) {
+                        Class<?> type = field != null ? field.getType() : Object.class;
+                        Object value = value(in, type);
+                        if(field == null || value == null && type.isPrimitive()) continue;
+                        if(value == null || wrap(type).isInstance(value)) field.set(object, value);
+                    }
+                    return object;
+                default:
+                    throw new IllegalArgumentException("unknown value tag " + tag + ".");
+            }
+        }
+
+        private static Object number(long value, Class<?> target) {
+            if(target == long.class || target == Long.class) return value;
+            if(target == short.class || target == Short.class) return (short) value;
+            if(target == byte.class || target == Byte.class) return (byte) value;
+            if(target == char.class || target == Character.class) return (char) value;
+            if(target == double.class || target == Double.class) return (double) value;
+            if(target == float.class || target == Float.class) return (float) value;
+            return (int) value;
+        }
+
+        private static Class<?> wrap(Class<?> type) {
+            if(!type.isPrimitive()) return type;
+            if(type == int.class) return Integer.class;
+            if(type == long.class) return Long.class;
+            if(type == boolean.class) return Boolean.class;
+            if(type == double.class) return Double.class;
+            if(type == float.class) return Float.class;
+            if(type == short.class) return Short.class;
+            if(type == byte.class) return Byte.class;
+            return Character.class;
+        }
+    }
+
+    private static void writeVarint(BufferedSink out, long value) {
+        try {
+            while((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int varint(ByteBuffer in) {
+        long value = varlong(in);
+        if(value < 0 || value > Integer.MAX_VALUE) throw new IllegalArgumentException("count out of range.");
+        return (int) value;
+    }
+
+    private static long varlong(ByteBuffer in) {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("malformed varint.");
+    }
+}
@@ -0,0 +1,71 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.squareup.moshi.Json;
+
+import java.util.Map;
+
+/**
+ * an event from the events api, e.g. a push, a fork or an issue comment.
+ * see <a href="https://docs.github.com/en/free-pro-team@latest/developers/webhooks-and-events/github-event-types">the github docs</a>
+ * for the event types and their payloads.
+ */
+public class Event {
+    /**
+     * the unique id of this event. ids increase over time.
+     */
+    public String id;
+    /**
+     * the type of this event. e.g. PushEvent
+     */
+    public String type;
+    public Actor actor;
+    public EventRepository repo;
+    public Actor org;
+    /**
+     * the payload of this event. its fields depend on the type.
+     */
+    public Map<String, Object> payload;
+    @Json(name = "public")
+    public boolean is_public;
+    public String created_at;
+
+    /**
+     * the user or organisation that caused an event.
+     */
+    public static class Actor {
+        public long id;
+        public String login;
+        public String display_login;
+        public String gravatar_id;
+        public String url;
+        public String avatar_url;
+    }
+
+    /**
+     * the repository an event happened in.
+     */
+    public static class EventRepository {
+        public long id;
+        /**
+         * the full name of the repo. format: owner/repo-name
+         */
+        public String name;
+        public String url;
+    }
+}
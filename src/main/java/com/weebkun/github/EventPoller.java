@@ -0,0 +1,272 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * polls an events feed of a repository, organisation or user and delivers new events to subscribers.
+ *
+ * <p>
+ *     every poll sends the etag of the last response, so a feed without new events is answered with
+ *     304 not modified, which does not count against the rate limit.
+ *     the poller waits at least as long as the {@code X-Poll-Interval} the server asks for between polls.
+ *     events already delivered are skipped, even when pages overlap, and new events are delivered oldest first.
+ * </p>
+ * see <a href="https://docs.github.com/en/free-pro-team@latest/rest/reference/activity#events">the github docs</a>
+ * for more info on the events api.
+ */
+public class EventPoller {
+
+    // the events api only returns the last 300 events
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGES = 3;
+    private static final int MAX_SEEN = 1000;
+    private static final int DEFAULT_INTERVAL = 60;
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2,
+            new ThreadFactoryBuilder().setNameFormat("github-events-%d").setDaemon(true).build());
+
+    private final String endPoint;
+    private final List<Consumer<Event>> subscribers = new CopyOnWriteArrayList<>();
+    // ids of delivered events, oldest first
+    private final LinkedHashSet<String> seen = new LinkedHashSet<>();
+    private String etag;
+    private volatile int pollInterval = DEFAULT_INTERVAL;
+    private volatile int minInterval = 0;
+    private volatile boolean skipExisting = false;
+    private boolean primed = false;
+    // the feed state above is read and written under fetching. delivering keeps events in order across polls
+    private final ReentrantLock fetching = new ReentrantLock();
+    private final ReentrantLock delivering = new ReentrantLock();
+    private ScheduledFuture<?> next;
+    // changed by every start and stop, so a run scheduled before a restart does not schedule itself again
+    private long runs;
+
+    private EventPoller(String endPoint) {
+        this.endPoint = endPoint;
+    }
+
+    /**
+     * creates a poller for the events of a repository.
+     * @param owner the name of the owner
+     * @param repo the name of the repo
+     * @return the poller
+     */
+    public static EventPoller forRepository(String owner, String repo) {
+        return new EventPoller(String.format("/repos/%s/%s/events", owner, repo));
+    }
+
+    /**
+     * creates a poller for the events of a repository.
+     * @param repository the repository
+     * @return the poller
+     */
+    public static EventPoller forRepository(Repository repository) {
+        return forRepository(repository.owner.getName(), repository.name);
+    }
+
+    /**
+     * creates a poller for the public events of an organisation.
+     * @param org the name of the organisation
+     * @return the poller
+     */
+    public static EventPoller forOrganisation(String org) {
+        return new EventPoller(String.format("/orgs/%s/events", org));
+    }
+
+    /**
+     * creates a poller for the events of a user.
+     * private events are included if the authenticated user is this user.
+     * @param user the login of the user
+     * @return the poller
+     */
+    public static EventPoller forUser(String user) {
+        return new EventPoller(String.format("/users/%s/events", user));
+    }
+
+    /**
+     * creates a poller for an {@code events_url}, such as {@link Repository#events_url} or {@link User#events_url}.
+     * optional template parts of the url, such as the {@code {/privacy}} of user events, are left out.
+     * @param eventsUrl the url of the events feed
+     * @return the poller
+     */
+    public static EventPoller forUrl(String eventsUrl) {
+        // urls in payloads are rfc 6570 templates, e.g. https://api.github.com/users/octocat/events{/privacy}
+        String url = eventsUrl.replaceAll("\\{[^}]*}", "");
+        return new EventPoller(url.startsWith(Github.getRoot()) ? url.substring(Github.getRoot().length()) : url);
+    }
+
+    /**
+     * adds a subscriber to receive new events.
+     * events are delivered one at a time, oldest first, from the poller's thread.
+     * @param subscriber the subscriber
+     * @return this poller for chaining
+     */
+    public EventPoller subscribe(Consumer<Event> subscriber) {
+        subscribers.add(subscriber);
+        return this;
+    }
+
+    /**
+     * sets the minimum number of seconds between polls.
+     * the poller still waits longer if the server's {@code X-Poll-Interval} asks for it.
+     * @param seconds the minimum interval
+     * @return this poller for chaining
+     */
+    public EventPoller setMinInterval(int seconds) {
+        this.minInterval = seconds;
+        return this;
+    }
+
+    /**
+     * sets whether the events already in the feed on the first poll are skipped instead of delivered.
+     * default: false
+     * @param skipExisting true to only deliver events that happen after the first poll
+     * @return this poller for chaining
+     */
+    public EventPoller setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+        return this;
+    }
+
+    /**
+     * starts polling in the background on a shared scheduler.
+     * @return this poller for chaining
+     */
+    public synchronized EventPoller start() {
+        if(next != null) return this;
+        long run = ++runs;
+        next = scheduler.schedule(() -> run(run), 0, TimeUnit.SECONDS);
+        return this;
+    }
+
+    /**
+     * stops polling. a poll already running finishes first, in the background.
+     */
+    public synchronized void stop() {
+        runs++;
+        if(next != null) next.cancel(false);
+        next = null;
+    }
+
+    private void run(long run) {
+        synchronized(this) {
+            if(run != runs) return;
+        }
+        try {
+            poll();
+        } catch (RuntimeException e) {
+            // keep polling, the feed may recover
+            e.printStackTrace();
+        }
+        synchronized(this) {
+            if(run == runs) next = scheduler.schedule(() -> run(run), Math.max(pollInterval, minInterval), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * polls the feed once and delivers any new events to the subscribers.
+     * @return the new events, oldest first
+     */
+    public List<Event> poll() {
+        List<Event> fresh;
+        fetching.lock();
+        try {
+            fresh = fetch();
+            // taken before the next poll can fetch, so events are delivered in the order they were fetched
+            delivering.lock();
+        } finally {
+            fetching.unlock();
+        }
+        try {
+            for(Event event : fresh) {
+                for(Consumer<Event> subscriber : subscribers) {
+                    try {
+                        subscriber.accept(event);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } finally {
+            delivering.unlock();
+        }
+        return fresh;
+    }
+
+    /**
+     * reads the new events of the feed.
+     * @return the events to deliver, oldest first
+     */
+    private List<Event> fetch() {
+        Network.Conditional<Event[]> first = Github.getNetworkUtil().getConditional(
+                new Query(endPoint).add("per_page", PAGE_SIZE).toString(), etag, Event[].class);
+        if(first == null) return Collections.emptyList();
+        String interval = first.headers.get("X-Poll-Interval");
+        if(interval != null) pollInterval = Integer.parseInt(interval);
+        if(!first.isModified()) return Collections.emptyList();
+        etag = first.etag;
+
+        List<Event> events = new ArrayList<>();
+        Event[] page = first.value;
+        for(int number = 1; ; ) {
+            boolean caughtUp = false;
+            for(Event event : page) {
+                if(seen.contains(event.id)) caughtUp = true;
+                else events.add(event);
+            }
+            // stop once the page reaches events we already have or the feed ends
+            if(caughtUp || page.length < PAGE_SIZE || ++number > MAX_PAGES) break;
+            page = Github.getNetworkUtil().get(new Query(endPoint).add("per_page", PAGE_SIZE).add("page", number).toString(), Event[].class);
+            if(page == null) break;
+        }
+
+        // the feed is newest first, and later pages can repeat events that moved down while paging
+        Map<String, Event> unique = new LinkedHashMap<>();
+        for(Event event : events) unique.putIfAbsent(event.id, event);
+        List<Event> fresh = new ArrayList<>(unique.values());
+        fresh.sort(Comparator.comparingLong(EventPoller::order));
+        for(Event event : fresh) remember(event.id);
+
+        boolean deliver = primed || !skipExisting;
+        primed = true;
+        return deliver ? fresh : Collections.emptyList();
+    }
+
+    private void remember(String id) {
+        seen.add(id);
+        if(seen.size() > MAX_SEEN) {
+            Iterator<String> oldest = seen.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private static long order(Event event) {
+        try {
+            return Long.parseLong(event.id);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -1,14 +1,13 @@
 package com.weebkun.github;
 
 import com.weebkun.utils.HttpErrorException;
-import okhttp3.MediaType;
+import com.weebkun.utils.JsonBody;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Base64;
 
 /**
  * represents a file in a repo.
@@ -27,13 +26,7 @@ public final class File extends Content {
      * @throws IOException if the data is unable to be encoded
      */
     public void update(String message, String branch, InputStream newData) throws HttpErrorException, IOException{
-        String json = "{" +
-                String.format("\"message\": \"%s\"", message) +
-                String.format("\"content\": \"%s\"", Base64.getEncoder().encodeToString(newData.readAllBytes())) +
-                String.format("\"sha\": \"%s\"", sha) +
-                String.format("\"branch\": \"%s\"", branch) +
-                "}";
-        RequestBody body = RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE));
+        RequestBody body = updateBody(message, newData.readAllBytes(), sha, branch);
         Request request = new Request.Builder()
                 .url(Github.getRoot() + String.format("/repos/%s/%s/contents/%s", owner, repo, path))
                 .put(body)
@@ -41,6 +34,23 @@ public final class File extends Content {
         try(Response response = Github.getClient().newCall(request).execute()) {
             if (response.code() != 200) throw new HttpErrorException(response);
         }
+        EntityCache.repositoryChanged(owner, repo);
+    }
+
+    /**
+     * builds the json body of {@link #update(String, String, InputStream)}.
+     * @param message the commit message
+     * @param content the new content of the file
+     * @param sha the sha of the file being replaced
+     * @param branch the branch
+     * @return the json body
+     */
+    static JsonBody updateBody(String message, byte[] content, String sha, String branch) {
+        return JsonBody.object()
+                .put("message", message)
+                .putBase64("content", content)
+                .put("sha", sha)
+                .put("branch", branch);
     }
 
     /**
@@ -50,12 +60,10 @@ public final class File extends Content {
      * @throws HttpErrorException if the delete operation failed e.g. due to conflict etc.
      */
     public void delete(String message, String branch) throws HttpErrorException {
-        String json = "{" +
-                String.format("\"message\": \"%s\"", message) +
-                String.format("\"sha\": \"%s\"", sha) +
-                String.format("\"branch\": \"%s\"", branch) +
-                "}";
-        RequestBody body = RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE));
+        RequestBody body = JsonBody.object()
+                .put("message", message)
+                .put("sha", sha)
+                .put("branch", branch);
         Request request = new Request.Builder()
                 .url(Github.getRoot() + String.format("/repos/%s/%s/contents/%s", owner, repo, path))
                 .delete(body)
@@ -65,5 +73,6 @@ public final class File extends Content {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        EntityCache.repositoryChanged(owner, repo);
     }
 }
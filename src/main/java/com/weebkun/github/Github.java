@@ -18,6 +18,10 @@ package com.weebkun.github;
 
 import com.squareup.moshi.Moshi;
 import com.weebkun.auth.OAuth;
+import com.weebkun.metrics.FlightRecorderInterceptor;
+import com.weebkun.metrics.MetricsEventListener;
+import com.weebkun.metrics.MetricsRecorder;
+import com.weebkun.resilience.DeadlineInterceptor;
 import com.weebkun.utils.*;
 import okhttp3.*;
 
@@ -30,24 +34,44 @@ import java.io.IOException;
 public class Github {
     private static String token;
     private static TokenType type;
-    private static final String ROOT = "https://api.github.com";
-    private static OkHttpClient client = new OkHttpClient();
+    private static final String DEFAULT_ROOT = "https://api.github.com";
+    private static volatile String root = DEFAULT_ROOT;
+    private static volatile OkHttpClient client = new OkHttpClient();
     private static String USER_AGENT = "Java-github-api";
     private static final Moshi moshi = new Moshi.Builder().add(new Branch.Protection.UpdateAdapter()).build();
     private static final Network networkUtil;
+    private static volatile Hedging hedging;
+    private static volatile EntityCache entityCache;
 
     static {
-        // default interceptor to add accept, user-agent and authorization headers to all requests
-        client = client.newBuilder().addInterceptor(chain -> chain.proceed(chain.request().newBuilder()
-                .addHeader("accept", MediaTypes.DEFAULT)
-                .addHeader("accept", MediaTypes.MERCY_PREVIEW)
-                .addHeader("accept", MediaTypes.NEBULA_PREVIEW)
-                .addHeader("accept", MediaTypes.DORIAN_PREVIEW)
-                .addHeader("accept", MediaTypes.ZZZAX_PREVIEW)
-                .addHeader("user-agent", USER_AGENT)
-                .addHeader("authorization", String.format("%s %s", type == TokenType.OAUTH ? "token" : "basic", token))
-                .build())).build();
-        networkUtil = new Network(client);
+        client = client.newBuilder()
+                .addInterceptor(Github::addHeaders)
+                .addInterceptor(new FlightRecorderInterceptor())
+                .addInterceptor(new DeadlineInterceptor())
+                .build();
+        networkUtil = new Network();
+    }
+
+    /**
+     * default interceptor to add accept, user-agent and authorization headers to all requests.
+     * an {@link Accept} tag on the request replaces the default accept headers for that request.
+     */
+    private static Response addHeaders(Interceptor.Chain chain) throws IOException {
+        Request.Builder builder = chain.request().newBuilder()
+                .header("user-agent", USER_AGENT)
+                .header("authorization", String.format("%s %s", type == TokenType.OAUTH ? "token" : "basic", token));
+        Accept accept = chain.request().tag(Accept.class);
+        if(accept != null) {
+            builder.removeHeader("accept");
+            for(String mediaType : accept.getMediaTypes()) builder.addHeader("accept", mediaType);
+        } else if(chain.request().header("accept") == null) {
+            builder.addHeader("accept", MediaTypes.DEFAULT)
+                    .addHeader("accept", MediaTypes.MERCY_PREVIEW)
+                    .addHeader("accept", MediaTypes.NEBULA_PREVIEW)
+                    .addHeader("accept", MediaTypes.DORIAN_PREVIEW)
+                    .addHeader("accept", MediaTypes.ZZZAX_PREVIEW);
+        }
+        return chain.proceed(builder.build());
     }
 
     /**
@@ -87,6 +111,7 @@ public class Github {
     /**
      * set an existing client instance as the global client instance.
      * use this if u have a custom configuration.
+     * the client must add the accept, authorization and user-agent headers itself.
      * @param client the client
      */
     public static void setClient(OkHttpClient client) {
@@ -106,7 +131,61 @@ public class Github {
      * @return the root
      */
     public static String getRoot() {
-        return ROOT;
+        return root;
+    }
+
+    /**
+     * sets the root url of the api, e.g. {@code https://github.example.com/api/v3} for github enterprise server,
+     * or the address of a local stand-in server for testing.
+     * @param root the root url. null to go back to {@code https://api.github.com}.
+     */
+    public static void setRoot(String root) {
+        if(root == null) root = DEFAULT_ROOT;
+        Github.root = root.endsWith("/") ? root.substring(0, root.length() - 1) : root;
+    }
+
+    /**
+     * get the url of the graphql api that goes with the root url.
+     * github enterprise server serves it at {@code /api/graphql} instead of below the rest root.
+     * @return the graphql url
+     */
+    public static String getGraphQlUrl() {
+        String root = Github.root;
+        return root.endsWith("/api/v3") ? root.substring(0, root.length() - "/v3".length()) + "/graphql" : root + "/graphql";
+    }
+
+    /**
+     * hedges slow get requests made by the library. off by default.
+     * @param hedging the hedging settings. null to turn hedging off.
+     * @see Hedging
+     */
+    public static void setHedging(Hedging hedging) {
+        Github.hedging = hedging;
+    }
+
+    /**
+     * get the hedging settings.
+     * @return the settings. null if hedging is off.
+     */
+    public static Hedging getHedging() {
+        return hedging;
+    }
+
+    /**
+     * caches repositories, branches, protections, users, organisations and teams read by the library. off by default.
+     * @param cache the cache. null to turn caching off.
+     * @see EntityCache
+     */
+    public static void setEntityCache(EntityCache cache) {
+        Github.entityCache = cache;
+    }
+
+    /**
+     * get the entity cache.
+     * @return the cache. null if caching is off.
+     */
+    public static EntityCache getEntityCache() {
+        return entityCache;
     }
 
     /**
@@ -139,7 +218,7 @@ public class Github {
      */
     public static User getAuthenticatedUser() throws NotAuthenticatedException, HttpErrorException {
         Request request = new Request.Builder()
-                .url(ROOT + "/user")
+                .url(root + "/user")
                 .build();
         User user = null;
         try(Response response = client.newCall(request).execute()) {
@@ -165,7 +244,16 @@ public class Github {
     public static Repository[] listUserRepos(Options params) throws ParamConflictException, HttpErrorException{
         if(params.perPage > 100) throw new IndexOutOfBoundsException("results per page exceeds 100.");
         if(params.before != null && params.since != null) throw new ParamConflictException("since and before used together.");
-        return networkUtil.get("/user/repos".concat(params.visibility != null ? String.format("?visibility=%s&", params.visibility) : "")
+        return networkUtil.get(userReposEndPoint(params), Repository[].class);
+    }
+
+    /**
+     * builds the endpoint of {@link #listUserRepos(Options)}.
+     * @param params the params
+     * @return the endpoint with its query string
+     */
+    static String userReposEndPoint(Options params) {
+        return "/user/repos".concat(params.visibility != null ? String.format("?visibility=%s&", params.visibility) : "")
                 .concat(params.affiliation != null ? String.format("affiliation=%s&", params.affiliation) : "")
                 .concat(params.type != null ? String.format("type=%s&", params.type) : "")
                 .concat(params.sort != null ? String.format("sort=%s&", params.sort) : "")
@@ -173,8 +261,7 @@ public class Github {
                 .concat(params.perPage != 0 ? String.format("per_page=%d&", params.perPage) : "")
                 .concat(params.page != 0 ? String.format("page=%d&", params.page) : "")
                 .concat(params.since != null ? String.format("since=%s", params.since) : "")
-                .concat(params.since == null && params.before != null ? String.format("before=%s", params.before) : ""),
-                Repository[].class);
+                .concat(params.since == null && params.before != null ? String.format("before=%s", params.before) : "");
     }
 
     /**
@@ -183,7 +270,7 @@ public class Github {
      */
     public static void createRepository(Repository.Adapter repo) {
         // set archived to null to exclude it from json
-        networkUtil.post("/user/repos", moshi.adapter(Repository.Adapter.class).nonNull().toJson(repo.setArchived(null)));
+        networkUtil.post("/user/repos", JsonBody.of(moshi.adapter(Repository.Adapter.class).nonNull(), repo.setArchived(null)));
     }
 
     /**
@@ -194,7 +281,11 @@ public class Github {
         private final OkHttpClient.Builder builder;
 
         public Builder(){
-            this.builder = new OkHttpClient.Builder();
+            // keep the default headers, flight recorder events and deadlines, interceptors added to this builder run after them
+            this.builder = new OkHttpClient.Builder()
+                    .addInterceptor(Github::addHeaders)
+                    .addInterceptor(new FlightRecorderInterceptor())
+                    .addInterceptor(new DeadlineInterceptor());
         }
 
         public Builder addInterceptor(Interceptor interceptor) {
@@ -217,6 +308,17 @@ public class Github {
             return this;
         }
 
+        /**
+         * measures every call of the client and reports it to a recorder, such as {@link com.weebkun.metrics.ApiMetrics}.
+         * okhttp takes a single event listener, so this replaces any listener added before, and the other way around.
+         * @param recorder the recorder
+         * @return this builder for chaining
+         */
+        public Builder addMetrics(MetricsRecorder recorder) {
+            builder.eventListenerFactory(new MetricsEventListener.Factory(recorder));
+            return this;
+        }
+
         public void build(){
             Github.client = builder.build();
         }
@@ -0,0 +1,352 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weebkun.metrics.Endpoints;
+import com.weebkun.metrics.MetricsRecorder;
+import com.weebkun.resilience.Deadline;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * sends a second copy of a slow get request on another connection, and takes whichever response comes first.
+ * cuts the tail latency caused by single slow connections.
+ *
+ * <p>
+ *     a request is hedged once it has taken longer than a percentile (default: p95) of the recent latency of get requests.
+ *     the losing call is cancelled. hedges are limited by a budget (default: 5% of requests),
+ *     so they cannot add more than that to the rate limit cost.
+ *     only the get requests made by the library are hedged.
+ * </p>
+ *
+ * <pre>{@code
+ * Hedging hedging = new Hedging().setPercentile(0.95).setBudget(0.05).setRecorder(metrics);
+ * Github.setHedging(hedging);
+ * }</pre>
+ */
+public final class Hedging {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("github-hedging").setDaemon(true).build());
+    private static final int WINDOW = 512;
+    private static final int MIN_SAMPLES = 32;
+    // recomputing the percentile sorts the window, so only do it every so often
+    private static final int RECOMPUTE_EVERY = 32;
+    private static final double MAX_TOKENS = 10;
+
+    private double percentile = 0.95;
+    private double budget = 0.05;
+    private long minDelay = TimeUnit.MILLISECONDS.toNanos(10);
+    private MetricsRecorder recorder;
+
+    private final long[] latencies = new long[WINDOW];
+    private long samples;
+    private long delay = -1;
+    private double tokens;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder wins = new LongAdder();
+
+    private OkHttpClient base;
+    private OkHttpClient hedgeClient;
+
+    /**
+     * sets the percentile of recent latency after which a request is hedged.
+     * default: 0.95
+     * @param percentile the percentile, between 0 and 1
+     * @return this object for chaining
+     */
+    public Hedging setPercentile(double percentile) {
+        if(percentile <= 0 || percentile >= 1) throw new IllegalArgumentException("percentile must be between 0 and 1.");
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * sets the maximum share of extra requests sent as hedges.
+     * default: 0.05
+     * @param budget the share of requests, between 0 and 1
+     * @return this object for chaining
+     */
+    public Hedging setBudget(double budget) {
+        if(budget < 0 || budget > 1) throw new IllegalArgumentException("budget must be between 0 and 1.");
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * sets the shortest time to wait before hedging, however fast recent requests were.
+     * default: 10 milliseconds
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return this object for chaining
+     */
+    public Hedging setMinDelay(long delay, TimeUnit unit) {
+        this.minDelay = unit.toNanos(delay);
+        return this;
+    }
+
+    /**
+     * reports every hedge and whether it won to a recorder, such as {@link com.weebkun.metrics.ApiMetrics}.
+     * @param recorder the recorder. null to stop reporting.
+     * @return this object for chaining
+     */
+    public Hedging setRecorder(MetricsRecorder recorder) {
+        this.recorder = recorder;
+        return this;
+    }
+
+    /**
+     * get the number of requests that could have been hedged.
+     * @return the requests
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * get the number of hedges sent.
+     * @return the hedges
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * get the number of hedges that answered before the request they copied.
+     * @return the wins
+     */
+    public long getWins() {
+        return wins.sum();
+    }
+
+    /**
+     * get the current time after which requests are hedged.
+     * @param unit the unit to return
+     * @return the delay. -1 until enough requests were made to measure it.
+     */
+    public synchronized long getDelay(TimeUnit unit) {
+        return delay < 0 ? -1 : unit.convert(delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * executes a get request, hedging it if it is slow.
+     * @param client the client
+     * @param request the request
+     * @return the first response
+     * @throws IOException if both calls failed
+     */
+    Response execute(OkHttpClient client, Request request) throws IOException {
+        requests.increment();
+        long start = System.nanoTime();
+        Race race = new Race(bind(client.newCall(request)));
+        long wait;
+        synchronized(this) {
+            tokens = Math.min(tokens + budget, MAX_TOKENS);
+            wait = delay;
+        }
+        ScheduledFuture<?> timer = wait < 0 ? null : scheduler.schedule(() -> hedge(race, client, request), wait, TimeUnit.NANOSECONDS);
+        try {
+            Response response = race.run();
+            record(System.nanoTime() - start);
+            return response;
+        } finally {
+            if(timer != null) timer.cancel(false);
+        }
+    }
+
+    private void hedge(Race race, OkHttpClient client, Request request) {
+        synchronized(this) {
+            if(tokens < 1) return;
+            tokens--;
+        }
+        if(race.hedge(bind(hedgeClient(client).newCall(request)))) {
+            hedges.increment();
+        } else {
+            // the request finished while the timer fired, give the token back
+            synchronized(this) {
+                tokens++;
+            }
+        }
+    }
+
+    private static Call bind(Call call) {
+        Deadline deadline = call.request().tag(Deadline.class);
+        return deadline != null ? deadline.apply(call) : call;
+    }
+
+    /**
+     * get a client sharing everything with {@code client} but its connection pool,
+     * so a hedge never waits behind the slow call on the same connection.
+     */
+    private synchronized OkHttpClient hedgeClient(OkHttpClient client) {
+        if(base != client) {
+            base = client;
+            OkHttpClient.Builder builder = client.newBuilder().connectionPool(new ConnectionPool());
+            // okhttp rethrows runtime exceptions of enqueued calls on the dispatcher thread, where nobody catches them.
+            // wrapped, they reach the race instead, such as a CircuitOpenException from an interceptor
+            builder.interceptors().add(0, chain -> {
+                try {
+                    return chain.proceed(chain.request());
+                } catch (RuntimeException e) {
+                    throw new HedgeFailedException(e);
+                }
+            });
+            hedgeClient = builder.build();
+        }
+        return hedgeClient;
+    }
+
+    private synchronized void record(long nanos) {
+        latencies[(int) (samples++ % WINDOW)] = nanos;
+        if(samples < MIN_SAMPLES || samples % RECOMPUTE_EVERY != 0) return;
+        long[] sorted = Arrays.copyOf(latencies, (int) Math.min(samples, WINDOW));
+        Arrays.sort(sorted);
+        delay = Math.max(sorted[(int) Math.min(sorted.length - 1, Math.round(percentile * sorted.length))], minDelay);
+    }
+
+    private void report(Request request, boolean won) {
+        if(won) wins.increment();
+        MetricsRecorder recorder = this.recorder;
+        if(recorder != null) recorder.recordHedge(request.method(), Endpoints.template(request.url()), won);
+    }
+
+    /**
+     * a request and its hedge. the primary call runs on the calling thread, the hedge on the dispatcher.
+     */
+    private final class Race implements Callback {
+        private final Call primary;
+        private Call hedge;
+        private Response winner;
+        private boolean hedgeDone;
+        private RuntimeException hedgeFailure;
+        private boolean finished;
+
+        Race(Call primary) {
+            this.primary = primary;
+        }
+
+        Response run() throws IOException {
+            Response response;
+            try {
+                response = primary.execute();
+            } catch (IOException e) {
+                // cancelled by a winning hedge, or failed while a hedge may still answer
+                Response hedged = awaitHedge();
+                if(hedged != null) return hedged;
+                RuntimeException failure = getHedgeFailure();
+                if(failure == null) throw e;
+                // such as an open circuit, which says more than the failure of the primary call
+                failure.addSuppressed(e);
+                throw failure;
+            } catch (RuntimeException e) {
+                Call hedge;
+                synchronized(this) {
+                    finished = true;
+                    hedge = this.hedge;
+                }
+                if(hedge != null) hedge.cancel();
+                throw e;
+            }
+            Call loser;
+            synchronized(this) {
+                finished = true;
+                if(winner != null) {
+                    // the hedge won just before the primary call could be cancelled
+                    response.close();
+                    return winner;
+                }
+                winner = response;
+                loser = hedge;
+            }
+            if(loser != null) {
+                loser.cancel();
+                report(primary.request(), false);
+            }
+            return response;
+        }
+
+        synchronized boolean hedge(Call call) {
+            if(finished || winner != null) return false;
+            hedge = call;
+            call.enqueue(this);
+            return true;
+        }
+
+        private synchronized RuntimeException getHedgeFailure() {
+            return hedgeFailure;
+        }
+
+        private synchronized Response awaitHedge() throws InterruptedIOException {
+            finished = true;
+            if(hedge == null) return null;
+            while(winner == null && !hedgeDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    hedge.cancel();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return winner;
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            synchronized(this) {
+                hedgeDone = true;
+                notifyAll();
+                if(winner != null) {
+                    response.close();
+                    return;
+                }
+                winner = response;
+            }
+            primary.cancel();
+            report(call.request(), true);
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            synchronized(this) {
+                if(e instanceof HedgeFailedException) hedgeFailure = (RuntimeException) e.getCause();
+                hedgeDone = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * carries a runtime exception thrown while sending a hedge to the race, as okhttp callbacks only receive io exceptions.
+     */
+    private static final class HedgeFailedException extends IOException {
+        HedgeFailedException(RuntimeException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.weebkun.metrics.Endpoints;
+import com.weebkun.metrics.MetricsRecorder;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * remembers get requests answered with 404 not found for a short time, and answers them again without calling the api.
+ * saves a call for every repeated lookup of a repo, user or path that does not exist.
+ *
+ * <p>
+ *     entries are kept per url and token, so a token that cannot see a repo does not hide it from another.
+ *     403 forbidden is remembered too with {@link #setForbidden(boolean)}, except when it is a rate limit.
+ *     the cached answer has the status, headers and body of the original, so it fails the same way.
+ * </p>
+ * <p>
+ *     a write sent through the same client drops the entries it could make exist:
+ *     those of its repo, such as after {@link Repository#createFile(String, String, java.io.InputStream)},
+ *     those under its own path for other writes, or every entry for writes that create, rename or move a repo,
+ *     such as {@link Github#createRepository(Repository.Adapter)}. graphql calls are posted even when they only read,
+ *     so they drop nothing.
+ * </p>
+ *
+ * <pre>{@code
+ * Github.init().addInterceptor(new NegativeCache(30, TimeUnit.SECONDS).setForbidden(true)).build();
+ * }</pre>
+ */
+public final class NegativeCache implements Interceptor {
+
+    // error bodies are small, a larger one is not worth keeping
+    private static final long MAX_BODY = 64 * 1024;
+
+    private final Cache<String, Entry> cache;
+    private volatile boolean forbidden;
+    private volatile MetricsRecorder recorder;
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * creates a cache keeping misses for 30 seconds.
+     */
+    public NegativeCache() {
+        this(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * creates a cache.
+     * @param ttl how long a miss is answered from the cache
+     * @param unit the unit of the time
+     */
+    public NegativeCache(long ttl, TimeUnit unit) {
+        cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, unit)
+                .maximumSize(10_000)
+                .build();
+    }
+
+    /**
+     * sets whether 403 forbidden is remembered too. rate limits are never remembered.
+     * default: false
+     * @param forbidden true to remember 403s
+     * @return this cache for chaining
+     */
+    public NegativeCache setForbidden(boolean forbidden) {
+        this.forbidden = forbidden;
+        return this;
+    }
+
+    /**
+     * reports every call answered from this cache as a cache hit to a recorder, such as {@link com.weebkun.metrics.ApiMetrics}.
+     * @param recorder the recorder. null to stop reporting.
+     * @return this cache for chaining
+     */
+    public NegativeCache setRecorder(MetricsRecorder recorder) {
+        this.recorder = recorder;
+        return this;
+    }
+
+    /**
+     * get the number of calls answered from this cache.
+     * @return the hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * get the number of misses remembered, including expired ones not evicted yet.
+     * @return the entries
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * forgets every miss under a path, for every token. use it after creating a resource without this library.
+     * @param path the path, such as {@code /repos/owner/repo}
+     */
+    public void invalidate(String path) {
+        String start = CaseFolding.foldNames(path);
+        cache.asMap().values().removeIf(entry -> entry.path.startsWith(start)
+                && (entry.path.length() == start.length() || start.endsWith("/") || entry.path.charAt(start.length()) == '/'));
+    }
+
+    /**
+     * forgets every miss.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String method = request.method();
+        if(!method.equals("GET") && !method.equals("HEAD")) {
+            Response response = chain.proceed(request);
+            if(response.isSuccessful()) created(method, request.url());
+            return response;
+        }
+
+        String key = key(request);
+        Entry entry = cache.getIfPresent(key);
+        if(entry != null) {
+            hits.increment();
+            MetricsRecorder recorder = this.recorder;
+            if(recorder != null) recorder.recordCacheHit(method, Endpoints.template(request.url()));
+            return entry.toResponse(request);
+        }
+
+        Response response = chain.proceed(request);
+        if(response.code() == 404 || (response.code() == 403 && forbidden && !isRateLimited(response))) {
+            ResponseBody body = response.body();
+            if(body == null || body.contentLength() <= MAX_BODY) {
+                byte[] bytes = body != null ? response.peekBody(MAX_BODY).bytes() : new byte[0];
+                if(response.code() == 404 || !new String(bytes, StandardCharsets.UTF_8).contains("rate limit")) {
+                    cache.put(key, new Entry(path(request.url()), response, bytes));
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * drops the misses a successful write could have made exist.
+     */
+    private void created(String method, HttpUrl url) {
+        List<String> segments = url.encodedPathSegments();
+        if(segments.get(segments.size() - 1).equals("graphql")) return;
+        int repos = segments.indexOf("repos");
+        // the new name of a created, renamed or moved repo is in the body, so any repo could exist now
+        if(createsRepository(method, segments, repos)) {
+            cache.invalidateAll();
+            return;
+        }
+        if(repos >= 0 && segments.size() >= repos + 3) {
+            invalidate("/" + String.join("/", segments.subList(0, repos + 3)));
+        } else {
+            invalidate(path(url));
+        }
+    }
+
+    /**
+     * checks if a write creates a repo, such as {@code POST /user/repos}, or gives one a new owner or name.
+     */
+    private static boolean createsRepository(String method, List<String> segments, int repos) {
+        if(repos < 0) return false;
+        // POST /user/repos and /orgs/{org}/repos
+        if(repos == segments.size() - 1) return method.equals("POST");
+        // PATCH /repos/{owner}/{repo} renames
+        if(segments.size() == repos + 3) return method.equals("PATCH");
+        if(segments.size() != repos + 4 || !method.equals("POST")) return false;
+        String action = segments.get(repos + 3);
+        return action.equals("generate") || action.equals("transfer") || action.equals("forks");
+    }
+
+    private static boolean isRateLimited(Response response) {
+        return "0".equals(response.header("X-RateLimit-Remaining")) || response.header("Retry-After") != null;
+    }
+
+    /**
+     * the url with its query parameters in order, and the hashed authorization the request was sent with.
+     */
+    private static String key(Request request) {
+        HttpUrl url = request.url();
+        StringBuilder key = new StringBuilder(request.method()).append(' ').append(url.host()).append(path(url));
+        TreeSet<String> query = new TreeSet<>();
+        for(int i = 0; i < url.querySize(); i++) query.add(url.queryParameterName(i) + '=' + url.queryParameterValue(i));
+        if(!query.isEmpty()) key.append('?').append(String.join("&", query));
+        String authorization = request.header("authorization");
+        if(authorization != null) {
+            key.append(' ').append(Hashing.sha256().hashString(authorization, StandardCharsets.UTF_8));
+        }
+        return key.toString();
+    }
+
+    /**
+     * the path, with the owner, repo and user names lower cased as they are not case sensitive.
+     * branch names and file paths are, so a miss for readme.md does not hide README.md.
+     */
+    private static String path(HttpUrl url) {
+        return CaseFolding.foldNames(url.encodedPath());
+    }
+
+    private static final class Entry {
+        private final String path;
+        private final int code;
+        private final String message;
+        private final Headers headers;
+        private final byte[] body;
+        private final MediaType contentType;
+
+        Entry(String path, Response response, byte[] body) {
+            this.path = path;
+            this.code = response.code();
+            this.message = response.message();
+            this.headers = response.headers();
+            this.body = body;
+            ResponseBody responseBody = response.body();
+            this.contentType = responseBody != null ? responseBody.contentType() : null;
+        }
+
+        Response toResponse(Request request) {
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(code)
+                    .message(message)
+                    .headers(headers)
+                    .body(ResponseBody.create(body, contentType))
+                    .build();
+        }
+    }
+}
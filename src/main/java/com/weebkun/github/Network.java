@@ -1,6 +1,9 @@
 package com.weebkun.github;
 
 import com.squareup.moshi.Moshi;
+import com.weebkun.resilience.Deadline;
+import com.weebkun.resilience.Priority;
+import com.weebkun.utils.DeadlineExceededException;
 import com.weebkun.utils.HttpErrorException;
 import com.weebkun.utils.UnauthorisedException;
 import okhttp3.*;
@@ -9,22 +12,31 @@ import java.io.IOException;
 
 class Network {
 
-    private final OkHttpClient client;
     private final Moshi moshi = Github.getMoshi();
 
-    protected Network(OkHttpClient client) {
-        this.client = client;
+    protected <T> T get(String endPoint, Class<T> type) {
+        return get(endPoint, type, null);
     }
 
-    protected <T> T get(String endPoint, Class<T> type) {
+    /**
+     * sends a get request with its own accept header.
+     * @param endPoint the endpoint
+     * @param type the type of the body
+     * @param accept the media types to accept. null for the default ones.
+     * @param <T> the type of the body
+     * @return the body. null if the request failed.
+     */
+    protected <T> T get(String endPoint, Class<T> type, Accept accept) {
         Request request = new Request.Builder()
-                .url(Github.getRoot() + endPoint)
+                .url(url(endPoint))
+                .tag(Accept.class, accept)
                 .build();
         T result;
-        try(Response response = client.newCall(request).execute()) {
+        try(Response response = executeGet(request)) {
             if(response.code() != 200) throw new HttpErrorException(response);
             result = moshi.adapter(type).fromJson(response.body().source());
         } catch (IOException e) {
+            expired(e);
             e.printStackTrace();
             return null;
         } catch (NullPointerException e) {
@@ -33,64 +45,227 @@ class Network {
         return result;
     }
 
+    /**
+     * executes a get request, hedging it if {@link Github#setHedging(Hedging)} is on.
+     * @param request the request
+     * @return the response
+     * @throws IOException if the call failed
+     */
+    private Response executeGet(Request request) throws IOException {
+        Hedging hedging = Github.getHedging();
+        if(hedging == null) return execute(request);
+        return hedging.execute(client(), withContext(request));
+    }
+
+    /**
+     * executes a request, bound to the {@link Deadline} entered on this thread if there is one.
+     * @param request the request
+     * @return the response
+     * @throws IOException if the call failed
+     * @throws DeadlineExceededException if the deadline already passed
+     */
+    private Response execute(Request request) throws IOException {
+        Deadline deadline = Deadline.current();
+        if(deadline == null) return client().newCall(request).execute();
+        deadline.check();
+        return deadline.apply(client().newCall(request)).execute();
+    }
+
+    /**
+     * tags a request with the deadline and priority of this thread,
+     * so calls made for it on other threads, such as hedges, keep them.
+     */
+    private static Request withContext(Request request) {
+        Request.Builder builder = request.newBuilder().tag(Priority.class, Priority.current());
+        Deadline deadline = Deadline.current();
+        if(deadline != null) {
+            deadline.check();
+            builder.tag(Deadline.class, deadline);
+        }
+        return builder.build();
+    }
+
+    /**
+     * turns a call that failed because its deadline passed into a {@link DeadlineExceededException}.
+     * @param e the failure
+     */
+    private static void expired(IOException e) {
+        Deadline deadline = Deadline.current();
+        if(deadline != null) deadline.check();
+    }
+
+    /**
+     * get the url of an endpoint. full urls, such as the graphql url, are used as they are.
+     * @param endPoint the endpoint, or a full url
+     * @return the url
+     */
+    private static String url(String endPoint) {
+        return endPoint.startsWith("https://") || endPoint.startsWith("http://") ? endPoint : Github.getRoot() + endPoint;
+    }
+
+    private static RequestBody body(String json) {
+        return RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE));
+    }
+
+    /**
+     * get the global client. read on every call so that a client set later through {@link Github#setClient(OkHttpClient)}
+     * or {@link Github.Builder} is used.
+     * @return the client
+     */
+    private OkHttpClient client() {
+        return Github.getClient();
+    }
+
+    /**
+     * sends a conditional get request. if {@code etag} still matches, the server answers 304
+     * without a body, which does not count against the rate limit.
+     * @param endPoint the endpoint
+     * @param etag the etag of the last response. null to send an unconditional request.
+     * @param type the type of the body
+     * @param <T> the type of the body
+     * @return the response. null if the request failed.
+     */
+    protected <T> Conditional<T> getConditional(String endPoint, String etag, Class<T> type) {
+        Request.Builder builder = new Request.Builder()
+                .url(url(endPoint));
+        if(etag != null) builder.header("If-None-Match", etag);
+        try(Response response = executeGet(builder.build())) {
+            if(response.code() == 304) return new Conditional<>(null, etag, response.headers());
+            if(response.code() != 200) throw new HttpErrorException(response);
+            return new Conditional<>(moshi.adapter(type).fromJson(response.body().source()), response.header("ETag"), response.headers());
+        } catch (IOException e) {
+            expired(e);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     protected void post(String endPoint, String json) {
+        post(endPoint, body(json));
+    }
+
+    protected void post(String endPoint, RequestBody body) {
+        Request request = new Request.Builder()
+                .url(url(endPoint))
+                .post(body)
+                .build();
+        try(Response response = execute(request)) {
+            if(!response.isSuccessful()) throw new HttpErrorException(response);
+        } catch (IOException e) {
+            expired(e);
+            e.printStackTrace();
+        }
+    }
+
+    protected <T> T post(String endPoint, String json, Class<T> type) {
+        return post(endPoint, body(json), type);
+    }
+
+    protected <T> T post(String endPoint, RequestBody body, Class<T> type) {
         Request request = new Request.Builder()
-                .url(Github.getRoot() + endPoint)
-                .post(RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE)))
+                .url(url(endPoint))
+                .post(body)
                 .build();
-        try(Response response = client.newCall(request).execute()) {
-            if(response.code() != 201) throw new HttpErrorException(response);
+        T result;
+        try(Response response = execute(request)) {
+            if(response.code() != 200) throw new HttpErrorException(response);
+            result = moshi.adapter(type).fromJson(response.body().source());
         } catch (IOException e) {
+            expired(e);
             e.printStackTrace();
+            return null;
+        } catch (NullPointerException e) {
+            return null;
         }
+        return result;
     }
 
     protected void put(String endPoint, String json) {
+        put(endPoint, body(json));
+    }
+
+    protected void put(String endPoint, RequestBody body) {
         Request request = new Request.Builder()
-                .url(Github.getRoot() + endPoint)
-                .put(RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE)))
+                .url(url(endPoint))
+                .put(body)
                 .build();
-        try(Response response = client.newCall(request).execute()) {
-            if(response.code() != 204) throw new HttpErrorException(response);
+        try(Response response = execute(request)) {
+            if(!response.isSuccessful()) throw new HttpErrorException(response);
         } catch (IOException e) {
+            expired(e);
             e.printStackTrace();
         }
     }
 
     protected void patch(String endPoint, String json) {
+        patch(endPoint, body(json));
+    }
+
+    protected void patch(String endPoint, RequestBody body) {
         Request request = new Request.Builder()
-                .url(Github.getRoot() + endPoint)
-                .patch(RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE)))
+                .url(url(endPoint))
+                .patch(body)
                 .build();
-        try(Response response = client.newCall(request).execute()) {
+        try(Response response = execute(request)) {
             if(response.code() == 403) throw new UnauthorisedException(response);
             if(response.code() != 200) throw new HttpErrorException(response);
         } catch (IOException e) {
+            expired(e);
             e.printStackTrace();
         }
     }
 
     protected void delete(String endPoint) {
         Request request = new Request.Builder()
-                .url(Github.getRoot() + endPoint)
+                .url(url(endPoint))
                 .delete()
                 .build();
-        try(Response response = client.newCall(request).execute()) {
-            if(response.code() != 204) throw new HttpErrorException(response);
+        try(Response response = execute(request)) {
+            if(!response.isSuccessful()) throw new HttpErrorException(response);
         } catch (IOException e) {
+            expired(e);
             e.printStackTrace();
         }
     }
 
     protected void delete(String endPoint, String json) {
+        delete(endPoint, body(json));
+    }
+
+    protected void delete(String endPoint, RequestBody body) {
         Request request = new Request.Builder()
-                .url(Github.getRoot() + endPoint)
-                .delete(RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE)))
+                .url(url(endPoint))
+                .delete(body)
                 .build();
-        try(Response response = client.newCall(request).execute()) {
-            if(response.code() != 204) throw new HttpErrorException(response);
+        try(Response response = execute(request)) {
+            if(!response.isSuccessful()) throw new HttpErrorException(response);
         } catch (IOException e) {
+            expired(e);
             e.printStackTrace();
         }
     }
+
+    /**
+     * the response to a conditional request.
+     * @param <T> the type of the body
+     */
+    static final class Conditional<T> {
+        final T value;
+        final String etag;
+        final Headers headers;
+
+        Conditional(T value, String etag, Headers headers) {
+            this.value = value;
+            this.etag = etag;
+            this.headers = headers;
+        }
+
+        /**
+         * checks if the resource changed since the etag sent.
+         * @return false if the server answered 304 not modified
+         */
+        boolean isModified() {
+            return value != null;
+        }
+    }
 }
@@ -1,6 +1,9 @@
 package com.weebkun.github;
 
 import com.weebkun.utils.HttpErrorException;
+import com.weebkun.utils.JsonBody;
+
+import java.util.function.UnaryOperator;
 
 /**
  * represents an organisation.
@@ -53,6 +56,16 @@ public class Organisation {
     public boolean members_can_create_internal_repositories;
     public boolean members_can_create_pages;
 
+    /**
+     * gets an organisation from github.
+     * @param org the login of the organisation
+     * @return the organisation. null if the request failed.
+     * @throws HttpErrorException if the organisation does not exist
+     */
+    public static Organisation get(String org) {
+        return EntityCache.read(Organisation.class, String.format("/orgs/%s", org), UnaryOperator.identity());
+    }
+
     /**
      * returns an array of repos belonging to an organisation.
      * @param org the name of the organisation
@@ -62,13 +75,23 @@ public class Organisation {
      */
     public static Repository[] getRepositories(String org, Options params) {
         if(params.perPage > 100) throw new IndexOutOfBoundsException("results per page exceeds 100.");
-        return Github.getNetworkUtil().get(String.format("/orgs/%s/repos"
-                .concat(params.type != null ? String.format("?type=%s&", params.type) : "")
-                .concat(params.sort != null ? String.format("sort=%s&", params.sort) : "")
-                .concat(params.direction != null ? String.format("direction=%s&", params.direction) : "")
-                .concat(params.perPage != 0 ? String.format("per_page=%d&", params.perPage) : "")
-                .concat(params.page != 0 ? String.format("page=%d", params.page) : ""), org),
-                Repository[].class);
+        return Github.getNetworkUtil().get(repositoriesEndPoint(org, params), Repository[].class);
+    }
+
+    /**
+     * builds the endpoint of {@link #getRepositories(String, Options)}.
+     * @param org the name of the org
+     * @param params the params
+     * @return the endpoint with its query string
+     */
+    static String repositoriesEndPoint(String org, Options params) {
+        return new Query(String.format("/orgs/%s/repos", org))
+                .add("type", params.type)
+                .add("sort", params.sort)
+                .add("direction", params.direction)
+                .add("per_page", params.perPage)
+                .add("page", params.page)
+                .toString();
     }
 
     /**
@@ -90,7 +113,7 @@ public class Organisation {
      */
     public void createRepository(RepositoryAdapter adapter) throws HttpErrorException{
         Github.getNetworkUtil().post(String.format("/orgs/%s/repos", this.name),
-                Github.getMoshi().adapter(RepositoryAdapter.class).nonNull().toJson((RepositoryAdapter) adapter.setArchived(null)));
+                JsonBody.of(Github.getMoshi().adapter(RepositoryAdapter.class).nonNull(), (RepositoryAdapter) adapter.setArchived(null)));
     }
 
     /**
@@ -44,5 +44,5 @@ public class Owner {
     public String events_url;
     public String received_events_url;
     public String type;
-    public String site_admin;
+    public boolean site_admin;
 }
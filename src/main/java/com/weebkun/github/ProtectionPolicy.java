@@ -0,0 +1,330 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weebkun.utils.HttpErrorException;
+import com.weebkun.utils.JsonBody;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * applies one desired {@link Branch.Protection} to many branches.
+ *
+ * <p>
+ *     for each branch, the current protection is fetched and compared with the desired one,
+ *     and only the sub-endpoint calls needed to close the difference are sent.
+ *     a branch that already matches costs a single GET.
+ *     differences that have no sub-endpoint (linear history, force pushes, deletions and push restrictions),
+ *     or an unprotected branch, fall back to a single full update of the protection.
+ * </p>
+ * the desired protection is not modified and can be shared by every branch.
+ */
+public class ProtectionPolicy {
+
+    private final Branch.Protection desired;
+    private int concurrency = 8;
+
+    /**
+     * creates a policy from a desired protection.
+     * unset (null) settings are treated as disabled.
+     * @param desired the desired protection
+     */
+    public ProtectionPolicy(Branch.Protection desired) {
+        this.desired = desired;
+    }
+
+    /**
+     * sets the number of branches updated at the same time by {@link #apply(Collection, Consumer)}.
+     * default: 8
+     * @param concurrency the number of branches updated at once
+     * @return this policy for chaining
+     */
+    public ProtectionPolicy setConcurrency(int concurrency) {
+        if(concurrency < 1) throw new IllegalArgumentException("concurrency must be at least 1.");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * computes the changes needed to bring a branch's current protection to this policy.
+     * @param current the current protection of the branch. null if the branch is not protected.
+     * @return the changes. empty if the protection already matches.
+     */
+    public List<Change> diff(Branch.Protection current) {
+        List<Change> changes = new ArrayList<>();
+        if(current == null) {
+            changes.add(Change.replace("protect branch"));
+            return changes;
+        }
+        // these have no sub-endpoint and can only be set by replacing the whole protection
+        if(enabled(desired.required_linear_history) != enabled(current.required_linear_history)
+                || enabled(desired.allow_force_pushes) != enabled(current.allow_force_pushes)
+                || enabled(desired.allow_deletions) != enabled(current.allow_deletions)
+                || !sameRestrictions(desired.restrictions, current.restrictions)
+                || desired.required_status_checks != null && current.required_status_checks == null
+                || desired.required_pull_request_reviews != null && current.required_pull_request_reviews == null) {
+            changes.add(Change.replace("replace protection"));
+            return changes;
+        }
+
+        Branch.Protection.RequiredStatusChecks checks = desired.required_status_checks;
+        if(checks == null && current.required_status_checks != null) {
+            changes.add(new Change("remove required status checks",
+                    protection -> protection.updateStatusCheckPolicy(null, false)));
+        } else if(checks != null) {
+            Set<String> wanted = contexts(checks.contexts);
+            Set<String> existing = contexts(current.required_status_checks.contexts);
+            if(checks.strict != current.required_status_checks.strict) {
+                // the patch sets the contexts as well
+                changes.add(new Change("update required status checks",
+                        protection -> protection.updateStatusCheckPolicy(checks, true)));
+            } else {
+                String[] added = wanted.stream().filter(context -> !existing.contains(context)).toArray(String[]::new);
+                String[] removed = existing.stream().filter(context -> !wanted.contains(context)).toArray(String[]::new);
+                if(added.length > 0) changes.add(new Change("add status check contexts " + Arrays.toString(added),
+                        protection -> protection.addStatusCheckContexts(added)));
+                if(removed.length > 0) changes.add(new Change("remove status check contexts " + Arrays.toString(removed),
+                        protection -> protection.removeStatusCheckContexts(removed)));
+            }
+        }
+
+        boolean enforce = enabled(desired.enforce_admins);
+        if(enforce != enabled(current.enforce_admins)) {
+            changes.add(new Change((enforce ? "enforce" : "stop enforcing") + " admins",
+                    protection -> protection.enforceAdmins(enforce)));
+        }
+
+        Branch.Protection.RequiredPullRequestReviews reviews = desired.required_pull_request_reviews;
+        if(reviews == null && current.required_pull_request_reviews != null) {
+            changes.add(new Change("remove required pull request reviews",
+                    protection -> protection.updatePullRequestReviewPolicy(null, false)));
+        } else if(reviews != null && !sameReviews(reviews, current.required_pull_request_reviews)) {
+            changes.add(new Change("update required pull request reviews",
+                    protection -> protection.updatePullRequestReviewPolicy(reviews, true)));
+        }
+        return changes;
+    }
+
+    /**
+     * applies this policy to a single branch.
+     * the branch must have its owner and repo set.
+     * @param branch the branch
+     * @return the result of applying the policy
+     */
+    public Result apply(Branch branch) {
+        List<Change> changes = Collections.emptyList();
+        try {
+            Branch.Protection current;
+            try {
+                current = branch.getProtection();
+            } catch (HttpErrorException e) {
+                // 404 means the branch is not protected yet
+                if(e.status != 404) throw e;
+                current = null;
+            }
+            changes = diff(current);
+            for(Change change : changes) {
+                if(change.action == null) replace(branch);
+                else change.action.accept(current);
+            }
+            return new Result(branch, changes, null);
+        } catch (RuntimeException e) {
+            return new Result(branch, changes, e);
+        }
+    }
+
+    /**
+     * applies this policy to many branches, updating up to the configured concurrency at once.
+     * @param branches the branches. each must have its owner and repo set.
+     * @return a future with the results of every branch
+     */
+    public CompletableFuture<List<Result>> apply(Collection<Branch> branches) {
+        return apply(branches, result -> {});
+    }
+
+    /**
+     * applies this policy to many branches, updating up to the configured concurrency at once.
+     * @param branches the branches. each must have its owner and repo set.
+     * @param callback called with the result of each branch as soon as it is done, possibly from several threads at once.
+     * @return a future with the results of every branch
+     */
+    public CompletableFuture<List<Result>> apply(Collection<Branch> branches, Consumer<Result> callback) {
+        List<Result> results = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<List<Result>> done = new CompletableFuture<>();
+        if(branches.isEmpty()) {
+            done.complete(results);
+            return done;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, branches.size()),
+                new ThreadFactoryBuilder().setNameFormat("github-protection-%d").setDaemon(true).build());
+        AtomicInteger remaining = new AtomicInteger(branches.size());
+        for(Branch branch : branches) {
+            executor.execute(() -> {
+                try {
+                    Result result = apply(branch);
+                    results.add(result);
+                    callback.accept(result);
+                } catch (RuntimeException e) {
+                    done.completeExceptionally(e);
+                } finally {
+                    if(remaining.decrementAndGet() == 0) done.complete(results);
+                }
+            });
+        }
+        executor.shutdown();
+        return done;
+    }
+
+    private void replace(Branch branch) {
+        // the api requires every top level key to be present, even when null
+        Github.getNetworkUtil().put(branch.getEndPoint("/protection"),
+                JsonBody.of(Github.getMoshi().adapter(Branch.Protection.class).serializeNulls(), desired));
+    }
+
+    private static boolean enabled(Branch.Protection.EnforceAdmins setting) {
+        return setting != null && setting.enabled;
+    }
+
+    private static boolean enabled(Branch.Protection.RequiredLinearHistory setting) {
+        return setting != null && setting.enabled;
+    }
+
+    private static boolean enabled(Branch.Protection.AllowForcePushes setting) {
+        return setting != null && setting.enabled;
+    }
+
+    private static boolean enabled(Branch.Protection.AllowDeletions setting) {
+        return setting != null && setting.enabled;
+    }
+
+    private static Set<String> contexts(String[] contexts) {
+        return contexts != null ? new HashSet<>(Arrays.asList(contexts)) : Collections.emptySet();
+    }
+
+    private static Set<String> logins(User[] users) {
+        return users != null ? Arrays.stream(users).map(User::getLogin).collect(Collectors.toSet()) : Collections.emptySet();
+    }
+
+    private static Set<String> slugs(Team[] teams) {
+        return teams != null ? Arrays.stream(teams).map(team -> team.slug).collect(Collectors.toSet()) : Collections.emptySet();
+    }
+
+    private static Set<String> slugs(App[] apps) {
+        return apps != null ? Arrays.stream(apps).map(app -> app.slug).collect(Collectors.toSet()) : Collections.emptySet();
+    }
+
+    private static boolean sameRestrictions(Branch.Protection.Restrictions desired, Branch.Protection.Restrictions current) {
+        if(desired == null || current == null) return desired == current;
+        return logins(desired.users).equals(logins(current.users))
+                && slugs(desired.teams).equals(slugs(current.teams))
+                && slugs(desired.apps).equals(slugs(current.apps));
+    }
+
+    private static boolean sameReviews(Branch.Protection.RequiredPullRequestReviews desired, Branch.Protection.RequiredPullRequestReviews current) {
+        if(desired.dismiss_stale_reviews != current.dismiss_stale_reviews
+                || desired.require_code_owner_reviews != current.require_code_owner_reviews
+                || desired.required_approving_review_count != current.required_approving_review_count) return false;
+        Branch.Protection.DismissalRestrictions wanted = desired.dismissal_restrictions;
+        Branch.Protection.DismissalRestrictions existing = current.dismissal_restrictions;
+        if(wanted == null || existing == null) return wanted == existing;
+        return logins(wanted.users).equals(logins(existing.users)) && slugs(wanted.teams).equals(slugs(existing.teams));
+    }
+
+    /**
+     * a single change needed to apply the policy to a branch.
+     */
+    public static final class Change {
+        private final String description;
+        // null when the whole protection is replaced
+        private final Consumer<Branch.Protection> action;
+
+        private Change(String description, Consumer<Branch.Protection> action) {
+            this.description = description;
+            this.action = action;
+        }
+
+        private static Change replace(String description) {
+            return new Change(description, null);
+        }
+
+        /**
+         * checks if this change replaces the whole protection instead of calling a sub-endpoint.
+         * @return true if the whole protection is replaced
+         */
+        public boolean isFullUpdate() {
+            return action == null;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    /**
+     * the result of applying the policy to a branch.
+     */
+    public static final class Result {
+        private final Branch branch;
+        private final List<Change> changes;
+        private final RuntimeException error;
+
+        private Result(Branch branch, List<Change> changes, RuntimeException error) {
+            this.branch = branch;
+            this.changes = changes;
+            this.error = error;
+        }
+
+        /**
+         * get the branch this result is for.
+         * @return the branch
+         */
+        public Branch getBranch() {
+            return branch;
+        }
+
+        /**
+         * get the changes sent for this branch.
+         * @return the changes. empty if the branch already matched or failed before the diff.
+         * if the branch failed, only some of the changes may have been sent.
+         */
+        public List<Change> getChanges() {
+            return changes;
+        }
+
+        /**
+         * get the error that stopped this branch from being updated.
+         * @return the error. null if it succeeded.
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+
+        /**
+         * checks if the branch already matched the policy.
+         * @return true if nothing had to be changed
+         */
+        public boolean isUnchanged() {
+            return error == null && changes.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+/**
+ * builds an endpoint with its query params.
+ * params that are not set (null or 0) are left out, and the separators are placed accordingly.
+ */
+class Query {
+
+    private final StringBuilder endPoint;
+    private boolean first = true;
+
+    Query(String endPoint) {
+        this.endPoint = new StringBuilder(endPoint);
+    }
+
+    /**
+     * adds a param if it is not null.
+     * @param name the name of the param
+     * @param value the value
+     * @return this query for chaining
+     */
+    Query add(String name, String value) {
+        if(value == null) return this;
+        endPoint.append(first ? '?' : '&').append(name).append('=').append(value);
+        first = false;
+        return this;
+    }
+
+    /**
+     * adds a param if it is not 0.
+     * @param name the name of the param
+     * @param value the value
+     * @return this query for chaining
+     */
+    Query add(String name, int value) {
+        if(value == 0) return this;
+        endPoint.append(first ? '?' : '&').append(name).append('=').append(value);
+        first = false;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return endPoint.toString();
+    }
+}
@@ -16,13 +16,22 @@ Copyright 2020 weebkun
 
 package com.weebkun.github;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.squareup.moshi.Json;
+import com.weebkun.resilience.Deadline;
 import com.weebkun.utils.HttpErrorException;
+import com.weebkun.utils.JsonBody;
 import com.weebkun.utils.UnauthorisedException;
 import okhttp3.*;
 
 import java.io.*;
-import java.util.Base64;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 /**
  * represents a repository in github.
@@ -163,7 +172,145 @@ public class Repository {
      */
     public static Repository get(String owner, String name) throws UnauthorisedException{
         // get network util obj and send a get request to get /repos/owner/name
-        return Github.getNetworkUtil().get(String.format("/repos/%s/%s", owner, name), Repository.class);
+        return EntityCache.read(Repository.class, String.format("/repos/%s/%s", owner, name), UnaryOperator.identity());
+    }
+
+    /**
+     * gets many repositories concurrently with a default concurrency of 8.
+     * @param fullNames the full names of the repos. format: owner/repo-name
+     * @return a stream of the lookups, in the order they complete
+     * @see #getAll(Collection, int, Consumer)
+     */
+    public static Stream<Lookup> getAll(Collection<String> fullNames) {
+        return getAll(fullNames, 8);
+    }
+
+    /**
+     * gets many repositories concurrently.
+     * the returned stream yields each lookup as soon as it completes, so it can be consumed while
+     * the remaining repos are still being fetched. repeated names are only fetched once.
+     * @param fullNames the full names of the repos. format: owner/repo-name
+     * @param concurrency the maximum number of requests in flight
+     * @return a stream of the lookups, in the order they complete
+     */
+    public static Stream<Lookup> getAll(Collection<String> fullNames, int concurrency) {
+        Set<String> names = new LinkedHashSet<>(fullNames);
+        BlockingQueue<Lookup> completed = new LinkedBlockingQueue<>();
+        lookupAll(names, concurrency, completed::add);
+        return Stream.generate(() -> Uninterruptibles.takeUninterruptibly(completed)).limit(names.size());
+    }
+
+    /**
+     * gets many repositories concurrently, passing each lookup to {@code callback} as soon as it completes.
+     * a 404 or 403, or any other failure, for one repo is reported in its {@link Lookup} and does not abort the others.
+     * repeated names are only fetched once. the callback may be called from several threads at once.
+     * @param fullNames the full names of the repos. format: owner/repo-name
+     * @param concurrency the maximum number of requests in flight
+     * @param callback called with each lookup
+     * @return a future that completes when every repo has been looked up
+     */
+    public static CompletableFuture<Void> getAll(Collection<String> fullNames, int concurrency, Consumer<Lookup> callback) {
+        return lookupAll(new LinkedHashSet<>(fullNames), concurrency, callback);
+    }
+
+    private static CompletableFuture<Void> lookupAll(Set<String> names, int concurrency, Consumer<Lookup> callback) {
+        if(concurrency < 1) throw new IllegalArgumentException("concurrency must be at least 1.");
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if(names.isEmpty()) {
+            done.complete(null);
+            return done;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, names.size()),
+                new ThreadFactoryBuilder().setNameFormat("github-lookup-%d").setDaemon(true).build());
+        AtomicInteger remaining = new AtomicInteger(names.size());
+        // lookups still queued when the caller's deadline passes fail instead of being sent
+        Deadline deadline = Deadline.current();
+        for(String fullName : names) {
+            executor.execute(() -> {
+                try {
+                    callback.accept(deadline != null ? deadline.run(() -> Lookup.of(fullName)) : Lookup.of(fullName));
+                } catch (RuntimeException e) {
+                    done.completeExceptionally(e);
+                } finally {
+                    if(remaining.decrementAndGet() == 0) done.complete(null);
+                }
+            });
+        }
+        // already submitted lookups still run, the threads exit once the queue is drained
+        executor.shutdown();
+        return done;
+    }
+
+    /**
+     * the outcome of looking up a single repository in {@link #getAll(Collection, int, Consumer)}.
+     */
+    public static final class Lookup {
+        private final String fullName;
+        private final Repository repository;
+        private final RuntimeException failure;
+
+        private Lookup(String fullName, Repository repository, RuntimeException failure) {
+            this.fullName = fullName;
+            this.repository = repository;
+            this.failure = failure;
+        }
+
+        /**
+         * looks up a repo. never throws, so every name yields exactly one lookup.
+         */
+        private static Lookup of(String fullName) {
+            String[] parts = fullName.split("/", 2);
+            if(parts.length != 2) return new Lookup(fullName, null, new IllegalArgumentException("invalid repository name: " + fullName));
+            try {
+                Repository repository = get(parts[0], parts[1]);
+                // the network util returns null when the call itself failed
+                if(repository == null) return new Lookup(fullName, null, new IllegalStateException("no response received for " + fullName + "."));
+                return new Lookup(fullName, repository, null);
+            } catch (RuntimeException e) {
+                return new Lookup(fullName, null, e);
+            }
+        }
+
+        /**
+         * get the full name this lookup was requested with.
+         * @return the full name
+         */
+        public String getFullName() {
+            return fullName;
+        }
+
+        /**
+         * get the repository.
+         * @return the repository. null if it was not found or could not be fetched.
+         */
+        public Repository getRepository() {
+            return repository;
+        }
+
+        /**
+         * get the http error received for this repo, e.g. 404 if it does not exist or 403 if it is not accessible.
+         * @return the error. null if there was no http error.
+         */
+        public HttpErrorException getError() {
+            return failure instanceof HttpErrorException ? (HttpErrorException) failure : null;
+        }
+
+        /**
+         * get the reason this repo was not fetched: the http error, an invalid name, a failed call,
+         * or an exception such as {@link com.weebkun.utils.DeadlineExceededException}.
+         * @return the reason. null if the repository was found.
+         */
+        public RuntimeException getFailure() {
+            return failure;
+        }
+
+        /**
+         * checks if the repository was found.
+         * @return true if the repository was fetched
+         */
+        public boolean isFound() {
+            return repository != null;
+        }
     }
 
     /**
@@ -193,12 +340,11 @@ public class Repository {
      * @throws HttpErrorException if the create operation failed.
      */
     public static void create(String templateOwner, String templateName, String owner, String name, String description, boolean isPrivate) throws HttpErrorException{
-        RequestBody body = RequestBody.create(String.format("{" +
-                "\"owner\": \"%s\"," +
-                "\"name\": \"%s\"," +
-                "\"description\": \"%s\"," +
-                "\"private\": \"%s\""+
-                "}", owner, name, description, isPrivate), MediaType.get(MediaTypes.REQUEST_BODY_TYPE));
+        RequestBody body = JsonBody.object()
+                .put("owner", owner)
+                .put("name", name)
+                .put("description", description)
+                .put("private", isPrivate);
         Request request = new Request.Builder()
                 .url(Github.getRoot() + String.format("/repos/%s/%s/generate", templateOwner, templateName))
                 .post(body)
@@ -216,6 +362,7 @@ public class Repository {
      */
     public void delete() throws UnauthorisedException{
         Github.getNetworkUtil().delete(String.format("/repos/%s/%s", owner.getName(), name));
+        EntityCache.repositoryChanged(owner.getName(), name);
     }
 
     public Adapter adapter() {
@@ -242,18 +389,28 @@ public class Repository {
     }
 
     public Branch[] listBranches(int page, int perPage) {
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/branches", owner.getName(), name)
-                        .concat(page != 0 ? String.format("?page=%d", page) : "")
-                        .concat(perPage != 0 ? String.format("&per_page=%d", perPage) : ""))
-                .build();
-        Branch[] branches = {};
-        try(Response response = Github.getClient().newCall(request).execute()) {
-            branches = Github.getMoshi().adapter(Branch[].class).fromJson(response.body().source());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return branches;
+        Branch[] branches = EntityCache.read(Branch[].class, new Query(String.format("/repos/%s/%s/branches", owner.getName(), name))
+                .add("page", page)
+                .add("per_page", perPage)
+                .toString(), this::bind);
+        return branches != null ? branches : new Branch[0];
+    }
+
+    /**
+     * lists every branch of this repo, a page of 100 at a time.
+     * with a {@link com.weebkun.resilience.Deadline} entered, stops before the next page once it has passed.
+     * @return the branches
+     * @throws com.weebkun.utils.DeadlineExceededException if the deadline passed before every page was listed
+     */
+    public Branch[] listAllBranches() {
+        List<Branch> branches = new ArrayList<>();
+        Branch[] page;
+        int number = 0;
+        do {
+            page = listBranches(++number, 100);
+            branches.addAll(Arrays.asList(page));
+        } while(page.length == 100);
+        return branches.toArray(new Branch[0]);
     }
 
     public Branch[] listBranches(boolean isProtected) {
@@ -261,19 +418,12 @@ public class Repository {
     }
 
     public Branch[] listBranches(boolean isProtected, int page, int perPage) {
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/branches", owner.getName(), name)
-                .concat(isProtected ? String.format("?protected=%s", isProtected) : "")
-                .concat(page != 0 ? String.format("&page=%d", page) : "")
-                .concat(perPage != 0 ? String.format("&per_page=%d", perPage) : ""))
-                .build();
-        Branch[] branches = {};
-        try(Response response = Github.getClient().newCall(request).execute()) {
-            branches = Github.getMoshi().adapter(Branch[].class).fromJson(response.body().source());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return branches;
+        Branch[] branches = EntityCache.read(Branch[].class, new Query(String.format("/repos/%s/%s/branches", owner.getName(), name))
+                .add("protected", isProtected ? "true" : null)
+                .add("page", page)
+                .add("per_page", perPage)
+                .toString(), this::bind);
+        return branches != null ? branches : new Branch[0];
     }
 
     /**
@@ -282,22 +432,23 @@ public class Repository {
      * @return the branch object
      */
     public Branch getBranch(String name) {
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/branches/%s", owner.getName(), this.name, name))
-                .build();
-        Branch branch = null;
-        try(Response response = Github.getClient().newCall(request).execute()) {
-            if(response.code() != 200) throw new HttpErrorException(response);
-            branch = Github.getMoshi().adapter(Branch.class).fromJson(response.body().source());
-            // set the repo name and owner
-            branch.repo = this.name;
-            branch.owner = owner.getName();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return EntityCache.read(Branch.class, String.format("/repos/%s/%s/branches/%s", owner.getName(), this.name, name), this::bind);
+    }
+
+    /**
+     * sets the repo name and owner of branches read from this repo, so that their calls target it.
+     */
+    private Branch bind(Branch branch) {
+        branch.repo = name;
+        branch.owner = owner.getName();
         return branch;
     }
 
+    private Branch[] bind(Branch[] branches) {
+        for(Branch branch : branches) bind(branch);
+        return branches;
+    }
+
     /**
      * checks if vulnerability alerts are enabled for this repo.
      * the dorian preview media type is required to access this endpoint during the preview period.
@@ -335,17 +486,7 @@ public class Repository {
      * @throws HttpErrorException if any error occurred during the retrieval operation. e.g. due to a wrong path or the content is not found.
      */
     public Content getContent(String path) throws HttpErrorException{
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/contents/%s", owner.getName(), name, path))
-                .build();
-        Content content = null;
-        try(Response response = Github.getClient().newCall(request).execute()) {
-            if(response.code() != 200) throw new HttpErrorException(response);
-            content = Github.getMoshi().adapter(Content.class).fromJson(response.body().source());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return content;
+        return EntityCache.read(Content.class, String.format("/repos/%s/%s/contents/%s", owner.getName(), name, path), UnaryOperator.identity());
     }
 
     /**
@@ -354,17 +495,8 @@ public class Repository {
      * @throws HttpErrorException if any error occurred during the retrieval. e.g. wrong path
      */
     public Content[] getAllContent() throws HttpErrorException{
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/contents", owner.getName(), name))
-                .build();
-        Content[] contents = {};
-        try(Response response = Github.getClient().newCall(request).execute()) {
-            if(response.code() != 200) throw new HttpErrorException(response);
-            contents = Github.getMoshi().adapter(Content[].class).fromJson(response.body().source());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return contents;
+        Content[] contents = EntityCache.read(Content[].class, String.format("/repos/%s/%s/contents", owner.getName(), name), UnaryOperator.identity());
+        return contents != null ? contents : new Content[0];
     }
 
     /**
@@ -374,17 +506,8 @@ public class Repository {
      * @throws HttpErrorException if any error occurred during the retrieval. e.g. wrong path
      */
     public Content[] getDirectory(String path) throws HttpErrorException{
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/contents/%s", owner.getName(), name, path))
-                .build();
-        Content[] contents = {};
-        try(Response response = Github.getClient().newCall(request).execute()) {
-            if(response.code() != 200) throw new HttpErrorException(response);
-            contents = Github.getMoshi().adapter(Content[].class).fromJson(response.body().source());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return contents;
+        Content[] contents = EntityCache.read(Content[].class, String.format("/repos/%s/%s/contents/%s", owner.getName(), name, path), UnaryOperator.identity());
+        return contents != null ? contents : new Content[0];
     }
 
     /**
@@ -393,19 +516,11 @@ public class Repository {
      * @return the file
      */
     public File getFile(String path) throws HttpErrorException{
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/contents/%s", owner.getName(), name, path))
-                .build();
-        File file = null;
-        try(Response response = Github.getClient().newCall(request).execute()) {
-            if(response.code() != 200) throw new HttpErrorException(response);
-            file = Github.getMoshi().adapter(File.class).fromJson(response.body().source());
+        return EntityCache.read(File.class, String.format("/repos/%s/%s/contents/%s", owner.getName(), name, path), file -> {
             file.owner = owner.getName();
             file.repo = name;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return file;
+            return file;
+        });
     }
 
     /**
@@ -426,22 +541,7 @@ public class Repository {
      * @see #getReadMe()
      */
     public String getReadMe(String ref) throws HttpErrorException{
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/readme?ref=%s", owner.getName(), name, ref))
-                .build();
-        // create new client to use html media type
-        OkHttpClient client = new OkHttpClient.Builder()
-                .addInterceptor(chain -> chain.proceed(chain.request().newBuilder().addHeader("accept", MediaTypes.REPO_HTML).build()))
-                .build();
-        String html = null;
-        try(Response response = client.newCall(request).execute()) {
-            if(response.code() != 200) throw new HttpErrorException(response);
-            File file = Github.getMoshi().adapter(File.class).fromJson(response.body().source());
-            html = new String(Base64.getDecoder().decode(file.content));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return html;
+        return getReadMe(ref, MediaTypes.REPO_HTML);
     }
 
     /**
@@ -458,22 +558,24 @@ public class Repository {
      * @return the raw readme.
      */
     public String getReadMeRaw(String ref) {
+        return getReadMe(ref, MediaTypes.REPO_RAW);
+    }
+
+    private String getReadMe(String ref, String mediaType) throws HttpErrorException{
+        // the media type is set on the request so the call stays on the global client and its connection pool
         Request request = new Request.Builder()
                 .url(Github.getRoot() + String.format("/repos/%s/%s/readme?ref=%s", owner.getName(), name, ref))
+                .tag(Accept.class, Accept.of(mediaType))
                 .build();
-        // create new client to use raw media type
-        OkHttpClient client = Github.getClient().newBuilder()
-                .addInterceptor(chain -> chain.proceed(chain.request().newBuilder().addHeader("accept", MediaTypes.REPO_RAW).build()))
-                .build();
-        String raw = null;
-        try(Response response = client.newCall(request).execute()) {
+        String readMe = null;
+        try(Response response = Github.getClient().newCall(request).execute()) {
             if(response.code() != 200) throw new HttpErrorException(response);
-            File file = Github.getMoshi().adapter(File.class).fromJson(response.body().source());
-            raw = new String(Base64.getDecoder().decode(file.content));
+            // the raw and html media types return the readme itself instead of json
+            readMe = response.body().string();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return raw;
+        return readMe;
     }
 
     /**
@@ -499,12 +601,7 @@ public class Repository {
      * @throws HttpErrorException if the create operation failed.
      */
     public void createFile(String path, String message, InputStream file, String branch) throws IOException, HttpErrorException{
-        String json = "{" +
-                String.format("\"message\": \"%s\"", message) +
-                String.format("\"content\": \"%s\"", Base64.getEncoder().encodeToString(file.readAllBytes())) +
-                String.format("\"branch\": \"%s\"", branch) +
-                "}";
-        RequestBody body = RequestBody.create(json, MediaType.get(MediaTypes.REQUEST_BODY_TYPE));
+        RequestBody body = createFileBody(message, file.readAllBytes(), branch);
         Request request = new Request.Builder()
                 .url(Github.getRoot() + String.format("/repos/%s/%s/contents/%s", owner, name, path))
                 .put(body)
@@ -512,6 +609,21 @@ public class Repository {
         try(Response response = Github.getClient().newCall(request).execute()) {
             if(response.code() != 201) throw new HttpErrorException(response);
         }
+        EntityCache.repositoryChanged(owner.getName(), name);
+    }
+
+    /**
+     * builds the json body of {@link #createFile(String, String, InputStream, String)}.
+     * @param message the commit message
+     * @param content the content of the file
+     * @param branch the branch
+     * @return the json body
+     */
+    static JsonBody createFileBody(String message, byte[] content, String branch) {
+        return JsonBody.object()
+                .put("message", message)
+                .putBase64("content", content)
+                .put("branch", branch);
     }
 
     // todo implement tar and zip downloading
@@ -525,12 +637,12 @@ public class Repository {
      * @return the array of contributors
      */
     public User[] getContributors(boolean includeAnonymous, int resultsPerPage, int page){
-        return Github.getNetworkUtil().get(String.format("/repos/%s/%s/contributors?anon=%s&per_page=%d&page=%d",
+        return EntityCache.read(User[].class, String.format("/repos/%s/%s/contributors?anon=%s&per_page=%d&page=%d",
                 owner.getName(),
                 name,
                 includeAnonymous,
                 resultsPerPage,
-                page), User[].class);
+                page), UnaryOperator.identity());
     }
 
     /**
@@ -539,8 +651,8 @@ public class Repository {
      * @return the array of contributors
      */
     public User[] getContributors(boolean includeAnonymous) {
-        return Github.getNetworkUtil().get(String.format("/repos/%s/%s/contributors?anon=%s", owner.getName(), name, includeAnonymous),
-                User[].class);
+        return EntityCache.read(User[].class, String.format("/repos/%s/%s/contributors?anon=%s", owner.getName(), name, includeAnonymous),
+                UnaryOperator.identity());
     }
 
     /**
@@ -556,16 +668,7 @@ public class Repository {
      * @return the language object
      */
     public Language listLanguages() {
-        Request request = new Request.Builder()
-                .url(Github.getRoot() + String.format("/repos/%s/%s/languages", owner.getName(), name))
-                .build();
-        Language languages = null;
-        try(Response response = Github.getClient().newCall(request).execute()) {
-             languages = Github.getMoshi().adapter(Language.class).fromJson(response.body().source());
-        }catch (IOException e) {
-            e.printStackTrace();
-        }
-        return languages;
+        return EntityCache.read(Language.class, String.format("/repos/%s/%s/languages", owner.getName(), name), UnaryOperator.identity());
     }
 
     /**
@@ -649,9 +752,7 @@ public class Repository {
      * @throws HttpErrorException if something went wrong during the update.
      */
     public void replaceTopics(String[] topics) throws HttpErrorException{
-        RequestBody body = RequestBody.create(String.format("{" +
-                "\"names\": %s" +
-                "}", Github.getMoshi().adapter(String[].class).toJson(topics)), MediaType.get(MediaTypes.REQUEST_BODY_TYPE));
+        RequestBody body = JsonBody.object().put("names", topics);
         Request request = new Request.Builder()
                 .url(Github.getRoot() + String.format("/repos/%s/%s/topics", owner.getName(), name))
                 .put(body)
@@ -661,6 +762,7 @@ public class Repository {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        EntityCache.repositoryChanged(owner.getName(), name);
     }
 
     /**
@@ -670,10 +772,9 @@ public class Repository {
      * @throws HttpErrorException if the transfer operation failed
      */
     public void transfer(String newOwnerName, int[] teamIds) throws HttpErrorException{
-        RequestBody body = RequestBody.create(String.format("{" +
-                "\"new_owner\": \"%s\"," +
-                "\"team_ids\": \"%s\"" +
-                "}", newOwnerName, Github.getMoshi().adapter(int[].class).toJson(teamIds)), MediaType.get(MediaTypes.REQUEST_BODY_TYPE));
+        RequestBody body = JsonBody.object()
+                .put("new_owner", newOwnerName)
+                .put("team_ids", teamIds);
         Request request = new Request.Builder()
                 .url(Github.getRoot() + String.format("/repos/%s/%s/transfer", owner.getName(), name))
                 .post(body)
@@ -684,6 +785,7 @@ public class Repository {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        EntityCache.repositoryChanged(owner.getName(), name);
     }
 
     /**
@@ -694,9 +796,9 @@ public class Repository {
      * @see #transfer(String, int[])
      */
     public void transfer(String newOwnerName) throws HttpErrorException{
-        Github.getNetworkUtil().post(String.format("/repos/%s/%s/transfer", owner.getName(), name), String.format("{" +
-                "\"new_owner\": \"%s\"" +
-                "}", newOwnerName));
+        Github.getNetworkUtil().post(String.format("/repos/%s/%s/transfer", owner.getName(), name),
+                JsonBody.object().put("new_owner", newOwnerName));
+        EntityCache.repositoryChanged(owner.getName(), name);
     }
 
     /**
@@ -840,7 +942,8 @@ public class Repository {
         public void update() {
             // ignore gitignore and license template
             Github.getNetworkUtil().patch(String.format("/repos/%s/%s", this.owner, this.name),
-                    Github.getMoshi().adapter(Adapter.class).nonNull().toJson(this.setGitignoreTemplate(null).setLicenseTemplate(null)));
+                    JsonBody.of(Github.getMoshi().adapter(Adapter.class).nonNull(), this.setGitignoreTemplate(null).setLicenseTemplate(null)));
+            EntityCache.repositoryChanged(this.owner, this.name);
         }
     }
 }
@@ -0,0 +1,367 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.github;
+
+import com.squareup.moshi.JsonDataException;
+import com.weebkun.utils.HttpErrorException;
+import com.weebkun.utils.JsonBody;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * fetches many repositories in as few round trips as possible using the graphql api.
+ * each repository is requested under its own alias ({@code r0}, {@code r1}, ...) and the results
+ * are mapped back onto {@link Repository} and {@link Branch.Protection} objects.
+ *
+ * <p>
+ *     the repositories are split into queries of at most {@link #MAX_BATCH_SIZE} aliases,
+ *     which keeps every query well below the graphql node limit and at a rate limit cost of 1 point.
+ *     errors are reported per repository, so a missing or inaccessible repo does not fail the whole batch.
+ * </p>
+ * see <a href="https://docs.github.com/en/free-pro-team@latest/graphql/overview/resource-limitations">the github docs</a>
+ * for more info on the graphql limits.
+ */
+public class RepositoryBatch {
+
+    /**
+     * the maximum number of repositories requested in one query.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+    /**
+     * the maximum number of nodes a single graphql query may request.
+     */
+    private static final int MAX_NODES = 500_000;
+    private static final int TOPICS = 20;
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+    private static final String FRAGMENT = "fragment repo on Repository {" +
+            " node_id: id id: databaseId name full_name: nameWithOwner description" +
+            " html_url: url homepage: homepageUrl private: isPrivate fork: isFork" +
+            " archived: isArchived disabled: isDisabled is_template: isTemplate" +
+            " has_issues: hasIssuesEnabled has_wiki: hasWikiEnabled has_projects: hasProjectsEnabled" +
+            " allow_squash_merge: squashMergeAllowed allow_merge_commit: mergeCommitAllowed" +
+            " allow_rebase_merge: rebaseMergeAllowed delete_branch_on_merge: deleteBranchOnMerge" +
+            " stargazers_count: stargazerCount forks_count: forkCount" +
+            " created_at: createdAt updated_at: updatedAt pushed_at: pushedAt" +
+            " owner { login } license: licenseInfo { key name spdx_id: spdxId url }" +
+            " primaryLanguage { name }" +
+            " repositoryTopics(first: " + TOPICS + ") { nodes { topic { name } } }" +
+            " defaultBranchRef { name%s } }";
+
+    private static final String PROTECTION = " branchProtectionRule {" +
+            " requiresApprovingReviews requiredApprovingReviewCount dismissesStaleReviews requiresCodeOwnerReviews" +
+            " requiresStatusChecks requiresStrictStatusChecks requiredStatusCheckContexts" +
+            " isAdminEnforced requiresLinearHistory allowsForcePushes allowsDeletions }";
+
+    private final Set<String> names = new LinkedHashSet<>();
+    private int batchSize = 50;
+    private boolean protection = true;
+
+    /**
+     * fetches the given repositories with the default batch size.
+     * @param fullNames the full names of the repos. format: owner/repo-name
+     * @return the result of the batch
+     */
+    public static Result fetch(Collection<String> fullNames) {
+        return new RepositoryBatch().addAll(fullNames).execute();
+    }
+
+    /**
+     * adds a repository to this batch.
+     * @param owner the name of the owner
+     * @param name the name of the repo
+     * @return this batch for chaining
+     */
+    public RepositoryBatch add(String owner, String name) {
+        names.add(owner + "/" + name);
+        return this;
+    }
+
+    /**
+     * adds repositories to this batch. duplicates are only fetched once.
+     * @param fullNames the full names of the repos. format: owner/repo-name
+     * @return this batch for chaining
+     */
+    public RepositoryBatch addAll(Collection<String> fullNames) {
+        names.addAll(fullNames);
+        return this;
+    }
+
+    /**
+     * sets the number of repositories requested per query.
+     * @param batchSize the number of repos per query. max 100
+     * @return this batch for chaining
+     * @throws IndexOutOfBoundsException if the batch size is not between 1 and 100
+     */
+    public RepositoryBatch setBatchSize(int batchSize) {
+        if(batchSize < 1 || batchSize > MAX_BATCH_SIZE) throw new IndexOutOfBoundsException("batch size must be between 1 and 100.");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * sets whether to fetch the protection rule of each repo's default branch.
+     * default: true
+     * @param protection true to include the protection
+     * @return this batch for chaining
+     */
+    public RepositoryBatch setIncludeProtection(boolean protection) {
+        this.protection = protection;
+        return this;
+    }
+
+    /**
+     * runs the batch, sending one graphql query per chunk of repositories.
+     * @return the result containing the repositories and the errors per repo
+     */
+    public Result execute() {
+        Result result = new Result();
+        List<String> chunk = new ArrayList<>();
+        int size = Math.min(batchSize, MAX_NODES / (1 + TOPICS));
+        for(String fullName : names) {
+            String[] parts = fullName.split("/");
+            if(parts.length != 2 || !NAME.matcher(parts[0]).matches() || !NAME.matcher(parts[1]).matches()) {
+                result.errors.put(fullName, "invalid repository name: " + fullName);
+                continue;
+            }
+            chunk.add(fullName);
+            if(chunk.size() == size) {
+                send(chunk, result);
+                chunk.clear();
+            }
+        }
+        if(!chunk.isEmpty()) send(chunk, result);
+        return result;
+    }
+
+    /**
+     * builds the aliased query for a chunk of repositories.
+     * the names must already be validated as they are written into the query as is.
+     * @param chunk the full names of the repos
+     * @return the query
+     */
+    String buildQuery(List<String> chunk) {
+        StringBuilder query = new StringBuilder("query {");
+        for(int i = 0; i < chunk.size(); i++) {
+            String[] parts = chunk.get(i).split("/");
+            query.append(" r").append(i)
+                    .append(": repository(owner: \"").append(parts[0])
+                    .append("\", name: \"").append(parts[1])
+                    .append("\") { ...repo }");
+        }
+        return query.append(" } ").append(String.format(FRAGMENT, protection ? PROTECTION : "")).toString();
+    }
+
+    private void send(List<String> chunk, Result result) {
+        GraphQLResponse response;
+        try {
+            response = Github.getNetworkUtil().post(Github.getGraphQlUrl(),
+                    JsonBody.of(Github.getMoshi().adapter(GraphQLRequest.class), new GraphQLRequest(buildQuery(chunk))),
+                    GraphQLResponse.class);
+        } catch (HttpErrorException e) {
+            for(String fullName : chunk) result.errors.put(fullName, e.getMessage());
+            return;
+        } catch (JsonDataException e) {
+            // the response does not fit the fragment, report it instead of failing the other chunks
+            for(String fullName : chunk) result.errors.put(fullName, "unexpected response: " + e.getMessage());
+            return;
+        }
+        if(response == null) {
+            for(String fullName : chunk) result.errors.put(fullName, "no response received.");
+            return;
+        }
+        // errors carry the alias as the first element of their path
+        if(response.errors != null) {
+            for(GraphQLError error : response.errors) {
+                String alias = error.path != null && !error.path.isEmpty() ? String.valueOf(error.path.get(0)) : "";
+                if(!alias.matches("r\\d+")) {
+                    // not tied to a repository, so it applies to the whole chunk
+                    for(String fullName : chunk) result.errors.putIfAbsent(fullName, error.message);
+                    continue;
+                }
+                result.errors.put(chunk.get(Integer.parseInt(alias.substring(1))), error.message);
+            }
+        }
+        for(int i = 0; i < chunk.size(); i++) {
+            String fullName = chunk.get(i);
+            RepositoryNode node = response.data != null ? response.data.get("r" + i) : null;
+            if(node == null) {
+                result.errors.putIfAbsent(fullName, "repository not found: " + fullName);
+                continue;
+            }
+            result.repositories.put(fullName, node.toRepository());
+            if(node.defaultBranchRef != null && node.defaultBranchRef.branchProtectionRule != null)
+                result.protections.put(fullName, node.toProtection());
+        }
+    }
+
+    /**
+     * the result of a batch.
+     * repositories and protections are keyed by the full names they were requested with.
+     */
+    public static final class Result {
+        private final Map<String, Repository> repositories = new LinkedHashMap<>();
+        private final Map<String, Branch.Protection> protections = new LinkedHashMap<>();
+        private final Map<String, String> errors = new LinkedHashMap<>();
+
+        /**
+         * gets a repository from this result.
+         * @param fullName the full name of the repo. format: owner/repo-name
+         * @return the repository. may be null if it could not be fetched.
+         */
+        public Repository getRepository(String fullName) {
+            return repositories.get(fullName);
+        }
+
+        /**
+         * gets the protection of a repository's default branch.
+         * @param fullName the full name of the repo. format: owner/repo-name
+         * @return the protection. null if the default branch is not protected or the protection was not requested.
+         */
+        public Branch.Protection getProtection(String fullName) {
+            return protections.get(fullName);
+        }
+
+        /**
+         * gets all the repositories fetched successfully.
+         * @return the repositories keyed by full name
+         */
+        public Map<String, Repository> getRepositories() {
+            return Collections.unmodifiableMap(repositories);
+        }
+
+        /**
+         * gets the errors of this batch.
+         * @return the error messages keyed by the full name of the repo they belong to
+         */
+        public Map<String, String> getErrors() {
+            return Collections.unmodifiableMap(errors);
+        }
+
+        /**
+         * checks if any repository in this batch failed.
+         * @return true if there are errors
+         */
+        public boolean hasErrors() {
+            return !errors.isEmpty();
+        }
+    }
+
+    private static class GraphQLRequest {
+        GraphQLRequest(String query) {
+            this.query = query;
+        }
+
+        String query;
+    }
+
+    private static class GraphQLResponse {
+        Map<String, RepositoryNode> data;
+        List<GraphQLError> errors;
+    }
+
+    private static class GraphQLError {
+        String message;
+        String type;
+        List<Object> path;
+    }
+
+    /**
+     * a repository as returned by the fragment.
+     * most fields are aliased to their rest names so they decode straight into {@link Repository}.
+     */
+    private static class RepositoryNode extends Repository {
+        Named primaryLanguage;
+        Topics repositoryTopics;
+        Ref defaultBranchRef;
+
+        Repository toRepository() {
+            language = primaryLanguage != null ? primaryLanguage.name : null;
+            default_branch = defaultBranchRef != null ? defaultBranchRef.name : null;
+            if(repositoryTopics != null) {
+                topics = repositoryTopics.nodes.stream().map(topic -> topic.topic.name).toArray(String[]::new);
+            }
+            return this;
+        }
+
+        Branch.Protection toProtection() {
+            Rule rule = defaultBranchRef.branchProtectionRule;
+            Branch branch = new Branch();
+            branch.owner = owner.getName();
+            branch.repo = name;
+            branch.name = defaultBranchRef.name;
+            branch.isProtected = true;
+            Branch.Protection protection = new Branch.Protection();
+            if(rule.requiresStatusChecks) {
+                protection.required_status_checks = new Branch.Protection.RequiredStatusChecks();
+                protection.required_status_checks.strict = rule.requiresStrictStatusChecks;
+                protection.required_status_checks.contexts = rule.requiredStatusCheckContexts;
+            }
+            protection.enforce_admins = new Branch.Protection.EnforceAdmins();
+            protection.enforce_admins.enabled = rule.isAdminEnforced;
+            if(rule.requiresApprovingReviews) {
+                protection.required_pull_request_reviews = new Branch.Protection.RequiredPullRequestReviews();
+                protection.required_pull_request_reviews.dismiss_stale_reviews = rule.dismissesStaleReviews;
+                protection.required_pull_request_reviews.require_code_owner_reviews = rule.requiresCodeOwnerReviews;
+                // null on rules that do not require a number of approvals, leave the default then
+                if(rule.requiredApprovingReviewCount != null) {
+                    protection.required_pull_request_reviews.required_approving_review_count = rule.requiredApprovingReviewCount;
+                }
+            }
+            protection.required_linear_history = new Branch.Protection.RequiredLinearHistory();
+            protection.required_linear_history.enabled = rule.requiresLinearHistory;
+            protection.allow_force_pushes = new Branch.Protection.AllowForcePushes();
+            protection.allow_force_pushes.enabled = rule.allowsForcePushes;
+            protection.allow_deletions = new Branch.Protection.AllowDeletions();
+            protection.allow_deletions.enabled = rule.allowsDeletions;
+            branch.protection = protection;
+            return branch.bind(protection);
+        }
+    }
+
+    private static class Named {
+        String name;
+    }
+
+    private static class Topics {
+        List<TopicNode> nodes;
+    }
+
+    private static class TopicNode {
+        Named topic;
+    }
+
+    private static class Ref {
+        String name;
+        Rule branchProtectionRule;
+    }
+
+    private static class Rule {
+        boolean requiresApprovingReviews;
+        Integer requiredApprovingReviewCount;
+        boolean dismissesStaleReviews;
+        boolean requiresCodeOwnerReviews;
+        boolean requiresStatusChecks;
+        boolean requiresStrictStatusChecks;
+        String[] requiredStatusCheckContexts;
+        boolean isAdminEnforced;
+        boolean requiresLinearHistory;
+        boolean allowsForcePushes;
+        boolean allowsDeletions;
+    }
+}
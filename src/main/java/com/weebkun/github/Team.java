@@ -16,6 +16,8 @@ Copyright 2020 weebkun
 
 package com.weebkun.github;
 
+import java.util.function.UnaryOperator;
+
 /**
  * represents a team in an organisation.
  */
@@ -33,4 +35,15 @@ public class Team {
     public String members_url;
     public String repositories_url;
     public Team parent;
+
+    /**
+     * gets a team of an organisation. the authenticated user must be able to see the team.
+     * @param org the login of the organisation
+     * @param slug the slug of the team
+     * @return the team. null if the request failed.
+     * @throws com.weebkun.utils.HttpErrorException if the team does not exist
+     */
+    public static Team get(String org, String slug) {
+        return EntityCache.read(Team.class, String.format("/orgs/%s/teams/%s", org, slug), UnaryOperator.identity());
+    }
 }
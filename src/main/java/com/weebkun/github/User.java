@@ -16,6 +16,8 @@ Copyright 2020 weebkun
 
 package com.weebkun.github;
 
+import java.util.function.UnaryOperator;
+
 /**
  * a user of github.
  */
@@ -36,6 +38,16 @@ public class User {
         return node_id;
     }
 
+    /**
+     * gets a user from github.
+     * @param login the login of the user
+     * @return the user. null if the request failed.
+     * @throws com.weebkun.utils.HttpErrorException if the user does not exist
+     */
+    public static User get(String login) {
+        return EntityCache.read(User.class, String.format("/users/%s", login), UnaryOperator.identity());
+    }
+
     /**
      * returns an array of public repos for this user.
      * default values of type=all, sort=full_name, direction=asc;
@@ -0,0 +1,69 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+import jdk.jfr.*;
+
+/**
+ * a jdk flight recorder event for one call to the api, emitted by {@link FlightRecorderInterceptor}.
+ * the event lasts from the start of the call until its response body is closed.
+ *
+ * <p>
+ *     enable it in a recording with {@code -XX:StartFlightRecording:settings=profile}
+ *     or by its name, {@code com.weebkun.github.ApiCall}.
+ * </p>
+ */
+@Name("com.weebkun.github.ApiCall")
+@Label("GitHub API Call")
+@Category({"GitHub API"})
+@Description("a call to the github api")
+@StackTrace(false)
+public class ApiCallEvent extends Event {
+
+    @Label("Endpoint")
+    @Description("the endpoint template, such as /repos/{owner}/{repo}/branches")
+    public String endpoint;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Status")
+    @Description("the status code of the response. 0 if the call failed without a response")
+    public int status;
+
+    @Label("Response Bytes")
+    @DataAmount
+    public long responseBytes;
+
+    @Label("Network Time")
+    @Description("time until the response headers were received")
+    @Timespan(Timespan.NANOSECONDS)
+    public long networkTime;
+
+    @Label("Decode Time")
+    @Description("time spent reading and decoding the response body after the headers were received")
+    @Timespan(Timespan.NANOSECONDS)
+    public long decodeTime;
+
+    @Label("Cache")
+    @Description("network, cache, conditional (cache revalidated by the server) or not_modified (304 to an etag sent)")
+    public String cache;
+
+    @Label("Token Id")
+    @Description("a short hash of the token used, so calls can be grouped by token without recording it")
+    public String tokenId;
+}
@@ -0,0 +1,318 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * keeps the measurements of the calls made to the api in memory, per method and endpoint template.
+ * export them with {@link PrometheusExporter}, or read them with {@link #getEndpoints()}.
+ *
+ * <p>
+ *     the number of endpoints kept is limited, so unusual urls cannot grow the metrics without bound.
+ *     calls to endpoints past the limit are counted under the {@code other} endpoint.
+ * </p>
+ */
+public class ApiMetrics implements MetricsRecorder {
+
+    private static final int MAX_ENDPOINTS = 500;
+    private static final String OTHER = "other";
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, Integer> rateLimits = new ConcurrentHashMap<>();
+    private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private volatile int concurrencyLimit = -1;
+
+    @Override
+    public void recordCall(String method, String endpoint, int status, long nanos, long responseBytes) {
+        Endpoint stats = endpoint(method, endpoint);
+        stats.latency.record(nanos);
+        stats.bytes.add(responseBytes);
+        stats.statuses.computeIfAbsent(status, code -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void recordFailure(String method, String endpoint, long nanos) {
+        Endpoint stats = endpoint(method, endpoint);
+        stats.latency.record(nanos);
+        stats.failures.increment();
+    }
+
+    @Override
+    public void recordRetry(String method, String endpoint) {
+        endpoint(method, endpoint).retries.increment();
+    }
+
+    @Override
+    public void recordCacheHit(String method, String endpoint) {
+        endpoint(method, endpoint).cacheHits.increment();
+    }
+
+    @Override
+    public void recordHedge(String method, String endpoint, boolean won) {
+        Endpoint stats = endpoint(method, endpoint);
+        stats.hedges.increment();
+        if(won) stats.hedgeWins.increment();
+    }
+
+    @Override
+    public void recordRateLimit(String resource, int remaining) {
+        rateLimits.put(resource, remaining);
+    }
+
+    @Override
+    public void recordConcurrencyLimit(int limit) {
+        concurrencyLimit = limit;
+    }
+
+    @Override
+    public void recordBulkhead(String bulkhead, int inFlight, int maxInFlight, int queued) {
+        Bulkhead stats = bulkheads.computeIfAbsent(bulkhead, Bulkhead::new);
+        stats.inFlight = inFlight;
+        stats.maxInFlight = maxInFlight;
+        stats.queued = queued;
+    }
+
+    @Override
+    public void recordBulkheadRejection(String bulkhead) {
+        bulkheads.computeIfAbsent(bulkhead, Bulkhead::new).rejections.increment();
+    }
+
+    private Endpoint endpoint(String method, String template) {
+        String key = method + ' ' + template;
+        Endpoint stats = endpoints.get(key);
+        if(stats != null) return stats;
+        if(endpoints.size() >= MAX_ENDPOINTS) {
+            template = OTHER;
+            key = method + ' ' + OTHER;
+        }
+        String endpoint = template;
+        return endpoints.computeIfAbsent(key, k -> new Endpoint(method, endpoint));
+    }
+
+    /**
+     * get the measurements of every endpoint called so far.
+     * @return the endpoints
+     */
+    public Collection<Endpoint> getEndpoints() {
+        return Collections.unmodifiableCollection(endpoints.values());
+    }
+
+    /**
+     * get the measurements of an endpoint.
+     * @param method the http method
+     * @param template the endpoint template, such as {@code /repos/{owner}/{repo}/branches}
+     * @return the measurements. null if the endpoint was not called.
+     */
+    public Endpoint getEndpoint(String method, String template) {
+        return endpoints.get(method + ' ' + template);
+    }
+
+    /**
+     * get the rate limit remaining in the last response of each rate limit resource.
+     * @return the remaining calls by resource, such as {@code core} or {@code search}
+     */
+    public Map<String, Integer> getRateLimits() {
+        return Collections.unmodifiableMap(rateLimits);
+    }
+
+    /**
+     * get the last limit of calls in flight reported by an adaptive limit.
+     * @return the limit. -1 if none was reported.
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * get the state of each bulkhead that reported to these metrics.
+     * @return the bulkheads
+     */
+    public Collection<Bulkhead> getBulkheads() {
+        return Collections.unmodifiableCollection(bulkheads.values());
+    }
+
+    /**
+     * clears every measurement.
+     */
+    public void reset() {
+        endpoints.clear();
+        rateLimits.clear();
+        bulkheads.clear();
+        concurrencyLimit = -1;
+    }
+
+    /**
+     * the measurements of one method and endpoint template.
+     */
+    public static final class Endpoint {
+        private final String method;
+        private final String template;
+        private final Histogram latency = new Histogram();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+        private final LongAdder hedgeWins = new LongAdder();
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        private Endpoint(String method, String template) {
+            this.method = method;
+            this.template = template;
+        }
+
+        /**
+         * get the http method.
+         * @return the method
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * get the endpoint template.
+         * @return the template
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        /**
+         * get the latency of the calls, including failed ones.
+         * @return the latency histogram
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * get the number of response body bytes read.
+         * @return the bytes
+         */
+        public long getResponseBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * get the number of calls sent again.
+         * @return the retries
+         */
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        /**
+         * get the number of calls answered from a cache or revalidated with 304.
+         * @return the cache hits
+         */
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        /**
+         * get the number of calls that failed without a response.
+         * @return the failures
+         */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * get the number of hedges sent for slow calls.
+         * @return the hedges
+         */
+        public long getHedges() {
+            return hedges.sum();
+        }
+
+        /**
+         * get the number of hedges that answered before the call they copied.
+         * @return the wins
+         */
+        public long getHedgeWins() {
+            return hedgeWins.sum();
+        }
+
+        /**
+         * get the number of responses of each status code.
+         * @return the counts by status code
+         */
+        public Map<Integer, Long> getStatuses() {
+            Map<Integer, Long> counts = new TreeMap<>();
+            statuses.forEach((status, count) -> counts.put(status, count.sum()));
+            return counts;
+        }
+    }
+
+    /**
+     * the state of one bulkhead, as last reported.
+     */
+    public static final class Bulkhead {
+        private final String name;
+        private volatile int inFlight;
+        private volatile int maxInFlight;
+        private volatile int queued;
+        private final LongAdder rejections = new LongAdder();
+
+        private Bulkhead(String name) {
+            this.name = name;
+        }
+
+        /**
+         * get the name of the bulkhead.
+         * @return the name, such as {@code contents}
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * get the calls in flight.
+         * @return the calls
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * get the most calls the bulkhead lets in flight.
+         * @return the calls
+         */
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        /**
+         * get the calls waiting to be let through.
+         * @return the calls
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * get the number of calls turned away because the queue was full.
+         * @return the rejections
+         */
+        public long getRejections() {
+            return rejections.sum();
+        }
+    }
+}
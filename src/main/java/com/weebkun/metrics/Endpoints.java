@@ -0,0 +1,105 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+import okhttp3.HttpUrl;
+
+import java.util.List;
+
+/**
+ * turns request urls into endpoint templates, so metrics are kept per endpoint instead of per url.
+ */
+public final class Endpoints {
+
+    private Endpoints() {}
+
+    /**
+     * get the template of a url.
+     * owner, repo, user, org, team, branch and file path segments are replaced with placeholders,
+     * as are numeric ids and commit shas. the query string is dropped.
+     * e.g. {@code /repos/octocat/hello-world/branches/main/protection} becomes
+     * {@code /repos/{owner}/{repo}/branches/{branch}/protection}.
+     * @param url the url
+     * @return the template
+     */
+    public static String template(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        // github enterprise server serves the api below /api/v3
+        if(segments.size() >= 2 && "api".equals(segments.get(0)) && "v3".equals(segments.get(1))) segments = segments.subList(2, segments.size());
+        return template(segments);
+    }
+
+    /**
+     * get the template of a path, such as {@code /repos/octocat/hello-world/branches}.
+     * @param path the path, without the query string
+     * @return the template
+     */
+    public static String template(String path) {
+        HttpUrl url = HttpUrl.parse("https://localhost" + (path.startsWith("/") ? path : "/" + path));
+        return url != null ? template(url) : path;
+    }
+
+    private static String template(List<String> segments) {
+        StringBuilder template = new StringBuilder();
+        int size = segments.size();
+        for(int i = 0; i < size; i++) {
+            String segment = segments.get(i);
+            if(segment.isEmpty()) continue;
+            String previous = i > 0 ? segments.get(i - 1) : "";
+            template.append('/');
+            if(i == 1 && "repos".equals(previous)) template.append("{owner}");
+            else if(i == 2 && "repos".equals(segments.get(0))) template.append("{repo}");
+            else if(i == 1 && "users".equals(previous)) template.append("{user}");
+            else if(i == 1 && "orgs".equals(previous)) template.append("{org}");
+            else if("teams".equals(previous) && i == 3 && "orgs".equals(segments.get(0))) template.append("{team}");
+            else if("branches".equals(previous)) {
+                template.append("{branch}");
+                // branch names can contain slashes, skip to the sub-resource if there is one
+                int next = i + 1;
+                while(next < size && !isBranchResource(segments.get(next))) next++;
+                if(next == size) break;
+                i = next - 1;
+            } else if("contents".equals(previous) || "readme".equals(previous)) {
+                // the rest is a file path
+                template.append("{path}");
+                break;
+            } else if(isNumber(segment)) template.append("{id}");
+            else if(isSha(segment)) template.append("{sha}");
+            else template.append(segment);
+        }
+        return template.length() == 0 ? "/" : template.toString();
+    }
+
+    private static boolean isBranchResource(String segment) {
+        return "protection".equals(segment) || "rename".equals(segment);
+    }
+
+    private static boolean isNumber(String segment) {
+        for(int i = 0; i < segment.length(); i++) {
+            if(!Character.isDigit(segment.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static boolean isSha(String segment) {
+        if(segment.length() != 40) return false;
+        for(int i = 0; i < segment.length(); i++) {
+            if(Character.digit(segment.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+}
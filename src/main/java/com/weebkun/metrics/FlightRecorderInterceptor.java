@@ -0,0 +1,155 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+import okhttp3.*;
+import okio.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * emits an {@link ApiCallEvent} for every call, while a flight recording with the event enabled is running.
+ * it is part of the default client, and of clients made with {@link com.weebkun.github.Github.Builder}.
+ * add it after the interceptor that sets the authorization header so the token id is recorded.
+ *
+ * <p>
+ *     when the event is not enabled the call is passed on untouched,
+ *     so the only cost is checking whether the event is enabled.
+ * </p>
+ */
+public class FlightRecorderInterceptor implements Interceptor {
+
+    // the last authorization header and its id, so the token is not hashed on every call
+    private volatile String[] lastToken = new String[2];
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        ApiCallEvent event = new ApiCallEvent();
+        if(!event.isEnabled()) return chain.proceed(chain.request());
+
+        Request request = chain.request();
+        event.begin();
+        event.endpoint = Endpoints.template(request.url());
+        event.method = request.method();
+        event.tokenId = tokenId(request.header("authorization"));
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            event.networkTime = System.nanoTime() - start;
+            event.cache = "network";
+            event.commit();
+            throw e;
+        }
+        long headers = System.nanoTime();
+        event.networkTime = headers - start;
+        event.status = response.code();
+        event.cache = cache(response);
+        ResponseBody body = response.body();
+        if(body == null) {
+            event.commit();
+            return response;
+        }
+        // the event ends when the body is closed, after it was read and decoded
+        return response.newBuilder().body(new RecordingBody(body, event, headers)).build();
+    }
+
+    private static String cache(Response response) {
+        if(response.cacheResponse() != null) return response.networkResponse() != null ? "conditional" : "cache";
+        if(response.code() == 304 && response.request().header("If-None-Match") != null) return "not_modified";
+        return "network";
+    }
+
+    private String tokenId(String authorization) {
+        if(authorization == null) return null;
+        String[] last = lastToken;
+        if(authorization.equals(last[0])) return last[1];
+        String id;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(authorization.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for(int i = 0; i < 4; i++) hex.append(String.format("%02x", hash[i]));
+            id = hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every jdk has sha-256
+            throw new IllegalStateException(e);
+        }
+        lastToken = new String[]{authorization, id};
+        return id;
+    }
+
+    private static final class RecordingBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final ApiCallEvent event;
+        private final long headers;
+        private BufferedSource source;
+        private long bytes;
+        private boolean done;
+
+        RecordingBody(ResponseBody delegate, ApiCallEvent event, long headers) {
+            this.delegate = delegate;
+            this.event = event;
+            this.headers = headers;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            if(source == null) {
+                source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                    @Override
+                    public long read(Buffer sink, long byteCount) throws IOException {
+                        long read = super.read(sink, byteCount);
+                        if(read > 0) bytes += read;
+                        return read;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            finish();
+                        }
+                    }
+                });
+            }
+            return source;
+        }
+
+        private void finish() {
+            if(done) return;
+            done = true;
+            event.decodeTime = System.nanoTime() - headers;
+            event.responseBytes = bytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * a lock-free latency histogram with fixed exponential buckets.
+ *
+ * <p>
+ *     bucket {@code i} counts the values up to {@code 2^i} milliseconds, from 1 ms up to about 65 s,
+ *     and the last bucket counts everything larger.
+ *     recording is a couple of atomic increments, so it is safe and cheap to call from many threads at once.
+ * </p>
+ */
+public final class Histogram {
+
+    private static final long UNIT = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int BOUNDS = 17;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS + 1);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * records a value.
+     * @param nanos the value in nanoseconds
+     */
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucket(nanos));
+        sum.add(Math.max(nanos, 0));
+    }
+
+    private static int bucket(long nanos) {
+        if(nanos <= UNIT) return 0;
+        // index of the smallest power of two of milliseconds that is at least the value
+        long millis = (nanos + UNIT - 1) / UNIT;
+        int bucket = 64 - Long.numberOfLeadingZeros(millis - 1);
+        return Math.min(bucket, BOUNDS);
+    }
+
+    /**
+     * get the upper bounds of the buckets, in seconds. the last bucket has no bound and is not included.
+     * @return the bounds
+     */
+    public static double[] getBounds() {
+        double[] bounds = new double[BOUNDS];
+        for(int i = 0; i < BOUNDS; i++) bounds[i] = (1L << i) / 1000.0;
+        return bounds;
+    }
+
+    /**
+     * get the number of values in each bucket, not cumulative. the last bucket holds the values above every bound.
+     * the counts are read one by one, so they may be off by the values recorded while reading.
+     * @return the counts
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length()];
+        for(int i = 0; i < counts.length; i++) counts[i] = buckets.get(i);
+        return counts;
+    }
+
+    /**
+     * get the number of values recorded.
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0;
+        for(int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+        return count;
+    }
+
+    /**
+     * get the sum of the values recorded.
+     * @return the sum in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * estimates a percentile as the upper bound of the bucket it falls in.
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimate in nanoseconds. 0 if nothing was recorded, {@link Long#MAX_VALUE} if it is above every bound.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for(long count : counts) total += count;
+        if(total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) return i < BOUNDS ? (1L << i) * UNIT : Long.MAX_VALUE;
+        }
+        return Long.MAX_VALUE;
+    }
+}
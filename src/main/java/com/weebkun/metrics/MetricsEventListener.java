@@ -0,0 +1,123 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+import okhttp3.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+/**
+ * an okhttp {@link EventListener} that measures every call and reports it to a {@link MetricsRecorder}.
+ * one listener is created per call by its {@link Factory}.
+ *
+ * <pre>{@code
+ * ApiMetrics metrics = new ApiMetrics();
+ * Github.init().addEventListenerFactory(new MetricsEventListener.Factory(metrics)).build();
+ * }</pre>
+ */
+public class MetricsEventListener extends EventListener {
+
+    private final MetricsRecorder recorder;
+    private final String method;
+    private final String endpoint;
+    private long start;
+    private int status;
+    private int attempts;
+    private long bytes;
+
+    private MetricsEventListener(MetricsRecorder recorder, Request request) {
+        this.recorder = recorder;
+        this.method = request.method();
+        this.endpoint = Endpoints.template(request.url());
+    }
+
+    @Override
+    public void callStart(Call call) {
+        start = System.nanoTime();
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol, IOException e) {
+        recorder.recordRetry(method, endpoint);
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        // every response after the first is a follow up: a redirect, an auth challenge or a retry
+        if(++attempts > 1) recorder.recordRetry(method, endpoint);
+        status = response.code();
+        if(status == 304 && response.request().header("If-None-Match") != null) recorder.recordCacheHit(method, endpoint);
+        String remaining = response.header("X-RateLimit-Remaining");
+        if(remaining != null) {
+            try {
+                String resource = response.header("X-RateLimit-Resource");
+                recorder.recordRateLimit(resource != null ? resource : "core", Integer.parseInt(remaining));
+            } catch (NumberFormatException ignored) {
+                // not a rate limit we understand
+            }
+        }
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        bytes += byteCount;
+    }
+
+    @Override
+    public void cacheHit(Call call, Response response) {
+        status = response.code();
+        recorder.recordCacheHit(method, endpoint);
+    }
+
+    @Override
+    public void cacheConditionalHit(Call call, Response cachedResponse) {
+        recorder.recordCacheHit(method, endpoint);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        recorder.recordCall(method, endpoint, status, System.nanoTime() - start, bytes);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException e) {
+        recorder.recordFailure(method, endpoint, System.nanoTime() - start);
+    }
+
+    /**
+     * creates a {@link MetricsEventListener} for every call.
+     */
+    public static class Factory implements EventListener.Factory {
+
+        private final MetricsRecorder recorder;
+
+        /**
+         * creates a factory reporting to a recorder.
+         * @param recorder the recorder
+         */
+        public Factory(MetricsRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            return new MetricsEventListener(recorder, call.request());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+/**
+ * receives measurements of the calls made to the api.
+ * implement this to send the measurements to your own metrics system, or use {@link ApiMetrics}.
+ *
+ * <p>
+ *     endpoints are passed as templates such as {@code /repos/{owner}/{repo}/branches},
+ *     see {@link Endpoints#template(okhttp3.HttpUrl)}.
+ *     methods may be called from many threads at once and should not block.
+ * </p>
+ */
+public interface MetricsRecorder {
+
+    /**
+     * called when a call is done and a response was received.
+     * @param method the http method
+     * @param endpoint the endpoint template
+     * @param status the status code of the final response
+     * @param nanos the time from the start of the call to the end of the response body, in nanoseconds
+     * @param responseBytes the number of bytes of response body read
+     */
+    default void recordCall(String method, String endpoint, int status, long nanos, long responseBytes) {}
+
+    /**
+     * called when a call failed without a response, such as on a timeout or a connection error.
+     * @param method the http method
+     * @param endpoint the endpoint template
+     * @param nanos the time from the start of the call to the failure, in nanoseconds
+     */
+    default void recordFailure(String method, String endpoint, long nanos) {}
+
+    /**
+     * called when a call is sent again, because of a failed connection, a redirect or an authentication challenge.
+     * @param method the http method
+     * @param endpoint the endpoint template
+     */
+    default void recordRetry(String method, String endpoint) {}
+
+    /**
+     * called when a call is answered from a cache, or revalidated with 304 not modified.
+     * @param method the http method
+     * @param endpoint the endpoint template
+     */
+    default void recordCacheHit(String method, String endpoint) {}
+
+    /**
+     * called when a hedge of a slow request is resolved, see {@link com.weebkun.github.Hedging}.
+     * @param method the http method
+     * @param endpoint the endpoint template
+     * @param won true if the hedge answered first, false if the request it copied did
+     */
+    default void recordHedge(String method, String endpoint, boolean won) {}
+
+    /**
+     * called when the limit of calls in flight changes, see {@link com.weebkun.resilience.AdaptiveLimit}.
+     * @param limit the new limit
+     */
+    default void recordConcurrencyLimit(int limit) {}
+
+    /**
+     * called when the calls in flight or queued in a bulkhead change, see {@link com.weebkun.resilience.Bulkhead}.
+     * @param bulkhead the bulkhead, such as {@code contents}
+     * @param inFlight the calls in flight
+     * @param maxInFlight the most calls the bulkhead lets in flight
+     * @param queued the calls waiting to be let through
+     */
+    default void recordBulkhead(String bulkhead, int inFlight, int maxInFlight, int queued) {}
+
+    /**
+     * called when a bulkhead turns a call away because its queue is full.
+     * @param bulkhead the bulkhead
+     */
+    default void recordBulkheadRejection(String bulkhead) {}
+
+    /**
+     * called with the {@code X-RateLimit-Remaining} header of every response that has one.
+     * @param resource the rate limit resource, such as {@code core}, {@code search} or {@code graphql}
+     * @param remaining the number of calls left in the current window
+     */
+    default void recordRateLimit(String resource, int remaining) {}
+}
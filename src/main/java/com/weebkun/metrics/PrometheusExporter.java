@@ -0,0 +1,193 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.metrics;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * writes {@link ApiMetrics} in the prometheus text exposition format.
+ *
+ * <p>
+ *     the metrics written are:
+ *     {@code github_api_request_duration_seconds} (histogram),
+ *     {@code github_api_responses_total}, {@code github_api_response_bytes_total},
+ *     {@code github_api_retries_total}, {@code github_api_cache_hits_total}, {@code github_api_failures_total},
+ *     {@code github_api_hedges_total}, {@code github_api_hedge_wins_total}
+ *     labelled by {@code method} and {@code endpoint},
+ *     {@code github_api_rate_limit_remaining} labelled by {@code resource},
+ *     {@code github_api_bulkhead_in_flight}, {@code github_api_bulkhead_max_in_flight}, {@code github_api_bulkhead_queued}
+ *     and {@code github_api_bulkhead_rejections_total} labelled by {@code bulkhead},
+ *     and {@code github_api_concurrency_limit} if an adaptive limit reports to the metrics.
+ * </p>
+ * see <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">the prometheus docs</a> for the format.
+ */
+public final class PrometheusExporter {
+
+    /**
+     * the content type of the text format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private PrometheusExporter() {}
+
+    /**
+     * writes the metrics as text.
+     * @param metrics the metrics
+     * @return the text
+     */
+    public static String export(ApiMetrics metrics) {
+        StringBuilder out = new StringBuilder();
+        try {
+            write(metrics, out);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * writes the metrics as text.
+     * @param metrics the metrics
+     * @param out where to write to
+     * @throws IOException if writing fails
+     */
+    public static void write(ApiMetrics metrics, Appendable out) throws IOException {
+        List<ApiMetrics.Endpoint> endpoints = new ArrayList<>(metrics.getEndpoints());
+        endpoints.sort(Comparator.comparing(ApiMetrics.Endpoint::getTemplate).thenComparing(ApiMetrics.Endpoint::getMethod));
+        double[] bounds = Histogram.getBounds();
+
+        header(out, "github_api_request_duration_seconds", "histogram", "latency of api calls.");
+        for(ApiMetrics.Endpoint endpoint : endpoints) {
+            String labels = labels(endpoint);
+            long[] counts = endpoint.getLatency().getBucketCounts();
+            long cumulative = 0;
+            for(int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+                out.append("github_api_request_duration_seconds_bucket{").append(labels)
+                        .append(",le=\"").append(le).append("\"} ").append(Long.toString(cumulative)).append('\n');
+            }
+            out.append("github_api_request_duration_seconds_sum{").append(labels).append("} ")
+                    .append(Double.toString(endpoint.getLatency().getSum() / 1e9)).append('\n');
+            out.append("github_api_request_duration_seconds_count{").append(labels).append("} ")
+                    .append(Long.toString(cumulative)).append('\n');
+        }
+
+        header(out, "github_api_responses_total", "counter", "responses of api calls by status code.");
+        for(ApiMetrics.Endpoint endpoint : endpoints) {
+            for(Map.Entry<Integer, Long> status : endpoint.getStatuses().entrySet()) {
+                out.append("github_api_responses_total{").append(labels(endpoint))
+                        .append(",code=\"").append(Integer.toString(status.getKey())).append("\"} ")
+                        .append(Long.toString(status.getValue())).append('\n');
+            }
+        }
+
+        counter(out, endpoints, "github_api_response_bytes_total", "bytes of response bodies read.", ApiMetrics.Endpoint::getResponseBytes);
+        counter(out, endpoints, "github_api_retries_total", "calls sent again after a failed connection, redirect or auth challenge.", ApiMetrics.Endpoint::getRetries);
+        counter(out, endpoints, "github_api_cache_hits_total", "calls answered from a cache or revalidated with 304.", ApiMetrics.Endpoint::getCacheHits);
+        counter(out, endpoints, "github_api_failures_total", "calls that failed without a response.", ApiMetrics.Endpoint::getFailures);
+        counter(out, endpoints, "github_api_hedges_total", "hedges sent for slow calls.", ApiMetrics.Endpoint::getHedges);
+        counter(out, endpoints, "github_api_hedge_wins_total", "hedges that answered before the call they copied.", ApiMetrics.Endpoint::getHedgeWins);
+
+        header(out, "github_api_rate_limit_remaining", "gauge", "rate limit remaining in the last response.");
+        for(Map.Entry<String, Integer> limit : metrics.getRateLimits().entrySet()) {
+            out.append("github_api_rate_limit_remaining{resource=\"").append(escape(limit.getKey())).append("\"} ")
+                    .append(Integer.toString(limit.getValue())).append('\n');
+        }
+
+        List<ApiMetrics.Bulkhead> bulkheads = new ArrayList<>(metrics.getBulkheads());
+        bulkheads.sort(Comparator.comparing(ApiMetrics.Bulkhead::getName));
+        if(!bulkheads.isEmpty()) {
+            header(out, "github_api_bulkhead_in_flight", "gauge", "calls in flight in each bulkhead.");
+            for(ApiMetrics.Bulkhead bulkhead : bulkheads) {
+                bulkhead(out, "github_api_bulkhead_in_flight", bulkhead, bulkhead.getInFlight());
+            }
+            header(out, "github_api_bulkhead_max_in_flight", "gauge", "most calls each bulkhead lets in flight.");
+            for(ApiMetrics.Bulkhead bulkhead : bulkheads) {
+                bulkhead(out, "github_api_bulkhead_max_in_flight", bulkhead, bulkhead.getMaxInFlight());
+            }
+            header(out, "github_api_bulkhead_queued", "gauge", "calls waiting in each bulkhead.");
+            for(ApiMetrics.Bulkhead bulkhead : bulkheads) {
+                bulkhead(out, "github_api_bulkhead_queued", bulkhead, bulkhead.getQueued());
+            }
+            header(out, "github_api_bulkhead_rejections_total", "counter", "calls turned away by a full bulkhead.");
+            for(ApiMetrics.Bulkhead bulkhead : bulkheads) {
+                bulkhead(out, "github_api_bulkhead_rejections_total", bulkhead, bulkhead.getRejections());
+            }
+        }
+
+        if(metrics.getConcurrencyLimit() >= 0) {
+            header(out, "github_api_concurrency_limit", "gauge", "calls allowed in flight by the adaptive limit.");
+            out.append("github_api_concurrency_limit ").append(Integer.toString(metrics.getConcurrencyLimit())).append('\n');
+        }
+    }
+
+    /**
+     * creates a handler serving the metrics, to mount on a jdk {@link com.sun.net.httpserver.HttpServer}.
+     * @param metrics the metrics
+     * @return the handler
+     */
+    public static HttpHandler handler(ApiMetrics metrics) {
+        return exchange -> {
+            byte[] body = export(metrics).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        };
+    }
+
+    private interface Value {
+        long get(ApiMetrics.Endpoint endpoint);
+    }
+
+    private static void counter(Appendable out, List<ApiMetrics.Endpoint> endpoints, String name, String help, Value value) throws IOException {
+        header(out, name, "counter", help);
+        for(ApiMetrics.Endpoint endpoint : endpoints) {
+            out.append(name).append('{').append(labels(endpoint)).append("} ")
+                    .append(Long.toString(value.get(endpoint))).append('\n');
+        }
+    }
+
+    private static void bulkhead(Appendable out, String name, ApiMetrics.Bulkhead bulkhead, long value) throws IOException {
+        out.append(name).append("{bulkhead=\"").append(escape(bulkhead.getName())).append("\"} ")
+                .append(Long.toString(value)).append('\n');
+    }
+
+    private static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String labels(ApiMetrics.Endpoint endpoint) {
+        return "method=\"" + escape(endpoint.getMethod()) + "\",endpoint=\"" + escape(endpoint.getTemplate()) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
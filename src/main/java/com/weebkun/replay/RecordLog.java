@@ -0,0 +1,178 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.replay;
+
+import com.google.common.hash.Hashing;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okio.Buffer;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * the on-disk format of recorded exchanges.
+ *
+ * <p>
+ *     the log is a gzip stream of a header ({@code GHRR} and a version byte) followed by one entry per exchange:
+ *     the key of the request (see {@link #key(Request)}) and its body, then status, message,
+ *     the relevant response headers and the response body.
+ *     strings are modified utf-8 and byte arrays are length-prefixed.
+ * </p>
+ */
+final class RecordLog {
+
+    private static final int MAGIC = 0x47485252;
+    private static final int VERSION = 3;
+
+    /**
+     * the response headers kept in the log. the rest, such as dates and server timings, only make it bigger.
+     */
+    static final Set<String> HEADERS = new HashSet<>(Arrays.asList(
+            "content-type", "etag", "last-modified", "link", "location", "retry-after", "x-poll-interval",
+            "x-ratelimit-limit", "x-ratelimit-remaining", "x-ratelimit-reset", "x-ratelimit-used", "x-ratelimit-resource",
+            "x-oauth-scopes", "x-accepted-oauth-scopes", "x-github-media-type"));
+
+    private RecordLog() {}
+
+    /**
+     * get the key a request is matched by: the method, the path, the query parameters sorted by name,
+     * the accept header, whether the request is conditional and a hash of the request body.
+     * the same path answers with another body for another media type, and with 304 not modified only to a conditional request.
+     * every graphql query is posted to the same path, so only the body tells them apart.
+     * the scheme, host and port are left out, so a log recorded against one root replays against any other.
+     * @param request the request
+     * @param body the body of the request, empty if it has none
+     * @return the key
+     */
+    static String key(Request request, byte[] body) {
+        HttpUrl url = request.url();
+        StringBuilder key = new StringBuilder(request.method()).append(' ').append(url.encodedPath());
+        if(url.querySize() > 0) {
+            List<String> params = new ArrayList<>(url.querySize());
+            for(int i = 0; i < url.querySize(); i++) {
+                String value = url.queryParameterValue(i);
+                params.add(url.queryParameterName(i) + (value != null ? "=" + value : ""));
+            }
+            Collections.sort(params);
+            key.append('?').append(String.join("&", params));
+        }
+        List<String> accept = request.headers("accept");
+        if(!accept.isEmpty()) key.append(" accept=").append(String.join(", ", accept));
+        // the etag itself changes between runs, so only its presence is matched
+        if(request.header("If-None-Match") != null) key.append(" if-none-match");
+        if(body.length > 0) key.append(" body=").append(Hashing.sha256().hashBytes(body));
+        return key.toString();
+    }
+
+    /**
+     * reads the body of a request, to record it and to match it.
+     * @param request the request
+     * @return the body, empty if it has none
+     * @throws IOException if the body cannot be written out
+     */
+    static byte[] body(Request request) throws IOException {
+        if(request.body() == null) return new byte[0];
+        Buffer buffer = new Buffer();
+        request.body().writeTo(buffer);
+        return buffer.readByteArray();
+    }
+
+    static DataOutputStream openWriter(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        return out;
+    }
+
+    static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.key);
+        writeBytes(out, entry.requestBody);
+        out.writeShort(entry.status);
+        out.writeUTF(entry.message);
+        out.writeShort(entry.headers.size() / 2);
+        for(String part : entry.headers) out.writeUTF(part);
+        writeBytes(out, entry.body);
+    }
+
+    /**
+     * reads every entry of a log.
+     * @param file the log
+     * @return the entries, in the order they were recorded
+     * @throws IOException if the file cannot be read or is not a log
+     */
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if(in.readInt() != MAGIC) throw new IOException(file + " is not a recorded log.");
+            int version = in.readUnsignedByte();
+            if(version < VERSION) throw new IOException(file + " was recorded by an older version that matched fewer parts of requests, record it again.");
+            if(version != VERSION) throw new IOException("unsupported log version " + version + ".");
+            while(true) {
+                String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] requestBody = readBytes(in);
+                int status = in.readShort();
+                String message = in.readUTF();
+                int headerCount = in.readUnsignedShort();
+                List<String> headers = new ArrayList<>(headerCount * 2);
+                for(int i = 0; i < headerCount * 2; i++) headers.add(in.readUTF());
+                entries.add(new Entry(key, requestBody, status, message, headers, readBytes(in)));
+            }
+        }
+        return entries;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * a recorded request and response.
+     */
+    static final class Entry {
+        final String key;
+        final byte[] requestBody;
+        final int status;
+        final String message;
+        // names and values, alternating
+        final List<String> headers;
+        final byte[] body;
+
+        Entry(String key, byte[] requestBody, int status, String message, List<String> headers, byte[] body) {
+            this.key = key;
+            this.requestBody = requestBody;
+            this.status = status;
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+}
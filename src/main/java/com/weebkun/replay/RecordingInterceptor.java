@@ -0,0 +1,99 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.replay;
+
+import okhttp3.*;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * records every request and response that passes through it to a log, for {@link ReplayInterceptor} to replay.
+ * calls still go to the api as usual.
+ *
+ * <pre>{@code
+ * RecordingInterceptor recorder = new RecordingInterceptor(new File("audit.ghrr"));
+ * Github.init().addInterceptor(recorder).build();
+ * // run the job against the api
+ * recorder.close();
+ * }</pre>
+ * the log is only complete once the recorder is closed.
+ * authorization headers are never recorded.
+ */
+public class RecordingInterceptor implements Interceptor, Closeable {
+
+    private final DataOutputStream out;
+    private int count;
+    private boolean closed;
+
+    /**
+     * creates a recorder writing to a new log, replacing the file if it exists.
+     * @param file the log
+     * @throws IOException if the file cannot be created
+     */
+    public RecordingInterceptor(File file) throws IOException {
+        this.out = RecordLog.openWriter(file);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+        byte[] requestBody = RecordLog.body(request);
+        List<String> headers = new ArrayList<>();
+        for(int i = 0; i < response.headers().size(); i++) {
+            String name = response.headers().name(i).toLowerCase(Locale.ROOT);
+            if(!RecordLog.HEADERS.contains(name)) continue;
+            headers.add(name);
+            headers.add(response.headers().value(i));
+        }
+        // peek so the caller can still read the body
+        byte[] body = response.peekBody(Long.MAX_VALUE).bytes();
+        RecordLog.Entry entry = new RecordLog.Entry(RecordLog.key(request, requestBody), requestBody, response.code(), response.message(), headers, body);
+        synchronized(this) {
+            if(!closed) {
+                RecordLog.write(out, entry);
+                count++;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * get the number of exchanges recorded so far.
+     * @return the count
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * finishes the log. calls made afterwards are no longer recorded.
+     * @throws IOException if the log cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        out.close();
+    }
+}
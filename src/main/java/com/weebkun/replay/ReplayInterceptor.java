@@ -0,0 +1,94 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.replay;
+
+import okhttp3.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * answers every call from a log made by {@link RecordingInterceptor}, without touching the network.
+ *
+ * <p>
+ *     requests are matched by method, path, query parameters, accept header, whether they are conditional
+ *     and their body, in any order of the parameters and against any root.
+ *     if the same request was recorded more than once, the responses are replayed in the order they were recorded,
+ *     and the last one is repeated after that, so polling loops see the same sequence every run.
+ *     a request that was not recorded fails with an {@link IOException}.
+ * </p>
+ *
+ * <pre>{@code
+ * Github.init().addInterceptor(new ReplayInterceptor(new File("audit.ghrr"))).build();
+ * }</pre>
+ */
+public class ReplayInterceptor implements Interceptor {
+
+    private final Map<String, Recorded> recorded = new HashMap<>();
+
+    /**
+     * loads a log.
+     * @param file the log
+     * @throws IOException if the log cannot be read
+     */
+    public ReplayInterceptor(File file) throws IOException {
+        for(RecordLog.Entry entry : RecordLog.read(file)) {
+            recorded.computeIfAbsent(entry.key, key -> new Recorded()).entries.add(entry);
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String key = RecordLog.key(request, RecordLog.body(request));
+        Recorded responses = recorded.get(key);
+        if(responses == null) throw new IOException("no recorded response for " + key + ".");
+        RecordLog.Entry entry = responses.next();
+
+        Headers.Builder headers = new Headers.Builder();
+        for(int i = 0; i < entry.headers.size(); i += 2) headers.add(entry.headers.get(i), entry.headers.get(i + 1));
+        String contentType = headers.get("content-type");
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(entry.status)
+                .message(entry.message)
+                .headers(headers.build())
+                .body(ResponseBody.create(entry.body, contentType != null ? MediaType.parse(contentType) : null))
+                .build();
+    }
+
+    /**
+     * get the number of distinct requests in the log.
+     * @return the count
+     */
+    public int size() {
+        return recorded.size();
+    }
+
+    private static final class Recorded {
+        private final List<RecordLog.Entry> entries = new ArrayList<>();
+        private int next;
+
+        synchronized RecordLog.Entry next() {
+            RecordLog.Entry entry = entries.get(next);
+            if(next < entries.size() - 1) next++;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import com.weebkun.metrics.MetricsRecorder;
+
+/**
+ * a limit on the calls in flight that finds the highest concurrency the api takes, for {@link PriorityDispatcher}.
+ *
+ * <p>
+ *     the limit grows by one for every limit's worth of calls answered while their latency stays within
+ *     {@code tolerance} times the lowest latency seen recently (additive increase).
+ *     it is cut by {@code backoff} when a call is slower than that or times out,
+ *     and halved on a 429 or a 403 secondary rate limit (multiplicative decrease).
+ *     calls started before a cut cannot cut it again, so one burst of slow calls only counts once.
+ * </p>
+ *
+ * <pre>{@code
+ * Github.init().addInterceptor(new PriorityDispatcher().setLimit(new AdaptiveLimit().setRecorder(metrics))).build();
+ * }</pre>
+ */
+public class AdaptiveLimit {
+
+    // the lowest latency is forgotten after this many samples, so a slower route or server is picked up again
+    private static final int MIN_LATENCY_WINDOW = 1000;
+
+    private int min = 1;
+    private int max = 200;
+    private double tolerance = 1.5;
+    private double backoff = 0.9;
+    private MetricsRecorder recorder;
+
+    private double limit;
+    private long minLatency = Long.MAX_VALUE;
+    private long windowMinLatency = Long.MAX_VALUE;
+    private int windowSamples;
+    private long lastCut;
+
+    /**
+     * creates a limit starting at 8 calls.
+     */
+    public AdaptiveLimit() {
+        this(8);
+    }
+
+    /**
+     * creates a limit.
+     * @param initial the limit to start at
+     */
+    public AdaptiveLimit(int initial) {
+        if(initial < 1) throw new IllegalArgumentException("the limit must be at least 1.");
+        this.limit = initial;
+        this.lastCut = System.nanoTime();
+    }
+
+    /**
+     * sets the lowest and highest the limit can go.
+     * default: 1 and 200
+     * @param min the lowest limit
+     * @param max the highest limit
+     * @return this limit for chaining
+     */
+    public synchronized AdaptiveLimit setRange(int min, int max) {
+        if(min < 1 || max < min) throw new IllegalArgumentException("expected 1 <= min <= max.");
+        this.min = min;
+        this.max = max;
+        this.limit = Math.max(min, Math.min(max, limit));
+        return this;
+    }
+
+    /**
+     * sets how many times the lowest recent latency a call can take before the limit is cut.
+     * default: 1.5
+     * @param tolerance the factor, more than 1
+     * @return this limit for chaining
+     */
+    public synchronized AdaptiveLimit setTolerance(double tolerance) {
+        if(tolerance <= 1) throw new IllegalArgumentException("tolerance must be more than 1.");
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * sets the factor the limit is multiplied by when latency rises or a call times out.
+     * secondary rate limits always halve it.
+     * default: 0.9
+     * @param backoff the factor, between 0 and 1
+     * @return this limit for chaining
+     */
+    public synchronized AdaptiveLimit setBackoff(double backoff) {
+        if(backoff <= 0 || backoff >= 1) throw new IllegalArgumentException("backoff must be between 0 and 1.");
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * reports every change of the limit to a recorder, such as {@link com.weebkun.metrics.ApiMetrics}.
+     * @param recorder the recorder. null to stop reporting.
+     * @return this limit for chaining
+     */
+    public synchronized AdaptiveLimit setRecorder(MetricsRecorder recorder) {
+        this.recorder = recorder;
+        if(recorder != null) recorder.recordConcurrencyLimit(getLimit());
+        return this;
+    }
+
+    /**
+     * get the number of calls allowed in flight.
+     * @return the limit
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * get the lowest latency seen recently, which the latency of each call is compared to.
+     * @return the latency in nanoseconds. -1 before the first call.
+     */
+    public synchronized long getMinLatency() {
+        return minLatency == Long.MAX_VALUE ? -1 : minLatency;
+    }
+
+    /**
+     * updates the limit with a call that was answered.
+     * @param start when the call was let through, from {@link System#nanoTime()}
+     * @param latency the time until the response headers arrived, in nanoseconds
+     * @param inFlight the calls in flight when it was let through, including itself
+     * @param throttled true if the api answered with a secondary rate limit
+     */
+    public void onResponse(long start, long latency, int inFlight, boolean throttled) {
+        int before;
+        int after;
+        MetricsRecorder recorder;
+        synchronized(this) {
+            before = (int) limit;
+            if(throttled) {
+                cut(start, 0.5);
+            } else {
+                sample(latency);
+                if(latency > minLatency * tolerance) {
+                    cut(start, backoff);
+                } else if(inFlight * 2 >= limit) {
+                    // only grow while the limit is actually being used
+                    limit = Math.min(max, limit + 1 / limit);
+                }
+            }
+            after = (int) limit;
+            recorder = this.recorder;
+        }
+        if(recorder != null && after != before) recorder.recordConcurrencyLimit(after);
+    }
+
+    /**
+     * updates the limit with a call that failed without an answer, such as on a timeout.
+     * @param start when the call was let through, from {@link System#nanoTime()}
+     */
+    public void onFailure(long start) {
+        int before;
+        int after;
+        MetricsRecorder recorder;
+        synchronized(this) {
+            before = (int) limit;
+            cut(start, backoff);
+            after = (int) limit;
+            recorder = this.recorder;
+        }
+        if(recorder != null && after != before) recorder.recordConcurrencyLimit(after);
+    }
+
+    private void cut(long start, double factor) {
+        if(start - lastCut < 0) return;
+        limit = Math.max(min, Math.floor(limit * factor));
+        lastCut = System.nanoTime();
+    }
+
+    private void sample(long latency) {
+        windowMinLatency = Math.min(windowMinLatency, latency);
+        minLatency = Math.min(minLatency, latency);
+        if(++windowSamples >= MIN_LATENCY_WINDOW) {
+            minLatency = windowMinLatency;
+            windowMinLatency = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import com.weebkun.metrics.MetricsRecorder;
+import com.weebkun.utils.BulkheadFullException;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keeps each category of calls in its own pool of slots, so slow calls of one category cannot hold up the others.
+ *
+ * <p>
+ *     every {@link Category} has its own number of calls in flight and calls queued.
+ *     a call waits while its category has all of its slots taken, and fails with a {@link BulkheadFullException}
+ *     if the queue is full as well, or with an {@link InterruptedIOException} when its {@link Deadline} passes.
+ *     a call holds its slot until its response body is closed, so a large download keeps it for as long as it is read.
+ * </p>
+ * <p>
+ *     the calls in flight and queued in each bulkhead are reported to a {@link MetricsRecorder},
+ *     or can be read with {@link #getInFlight(Category)} and {@link #getQueued(Category)}.
+ * </p>
+ *
+ * <pre>{@code
+ * Github.init().addInterceptor(new Bulkhead().setLimits(Bulkhead.Category.CONTENTS, 4, 16).setRecorder(metrics)).build();
+ * }</pre>
+ */
+public class Bulkhead implements Interceptor {
+
+    /**
+     * the categories of calls that get their own bulkhead.
+     */
+    public enum Category {
+        /**
+         * reads of small json resources, such as repos, users and branches. the default.
+         */
+        METADATA,
+        /**
+         * downloads of file contents, blobs, readmes and archives.
+         */
+        CONTENTS,
+        /**
+         * calls that change something, sent with any method but get and head. graphql queries are metadata.
+         */
+        WRITES,
+        /**
+         * searches, which also have a rate limit of their own.
+         */
+        SEARCH;
+
+        /**
+         * get the category of a request.
+         * @param request the request
+         * @return the category
+         */
+        public static Category of(Request request) {
+            HttpUrl url = request.url();
+            String path = url.encodedPath();
+            if(path.endsWith("/graphql")) return METADATA;
+            String method = request.method();
+            if(!method.equals("GET") && !method.equals("HEAD")) return WRITES;
+            if(Resources.of(url).equals("search")) return SEARCH;
+            if(url.host().startsWith("raw.") || url.host().startsWith("codeload.")
+                    || path.contains("/contents/") || path.endsWith("/contents")
+                    || path.endsWith("/readme") || path.contains("/readme/") || path.contains("/git/blobs/")
+                    || path.contains("/tarball") || path.contains("/zipball")) {
+                return CONTENTS;
+            }
+            return METADATA;
+        }
+
+        private String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Map<Category, Compartment> compartments = new EnumMap<>(Category.class);
+    private volatile MetricsRecorder recorder;
+
+    /**
+     * creates bulkheads with the default limits: 16 calls in flight and 64 queued for metadata,
+     * 4 and 32 for contents, 4 and 32 for writes, and 2 and 16 for search.
+     */
+    public Bulkhead() {
+        compartments.put(Category.METADATA, new Compartment(Category.METADATA, 16, 64));
+        compartments.put(Category.CONTENTS, new Compartment(Category.CONTENTS, 4, 32));
+        compartments.put(Category.WRITES, new Compartment(Category.WRITES, 4, 32));
+        compartments.put(Category.SEARCH, new Compartment(Category.SEARCH, 2, 16));
+    }
+
+    /**
+     * sets the limits of a category.
+     * @param category the category
+     * @param maxInFlight the most calls in flight at once
+     * @param maxQueued the most calls waiting for a slot. 0 to fail at once when every slot is taken.
+     * @return these bulkheads for chaining
+     */
+    public Bulkhead setLimits(Category category, int maxInFlight, int maxQueued) {
+        if(maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1.");
+        if(maxQueued < 0) throw new IllegalArgumentException("maxQueued cannot be negative.");
+        compartments.get(category).setLimits(maxInFlight, maxQueued);
+        return this;
+    }
+
+    /**
+     * reports the calls in flight and queued in each bulkhead to a recorder, such as {@link com.weebkun.metrics.ApiMetrics}.
+     * @param recorder the recorder. null to stop reporting.
+     * @return these bulkheads for chaining
+     */
+    public Bulkhead setRecorder(MetricsRecorder recorder) {
+        this.recorder = recorder;
+        if(recorder != null) compartments.values().forEach(Compartment::report);
+        return this;
+    }
+
+    /**
+     * get the number of calls in flight in a category.
+     * @param category the category
+     * @return the calls
+     */
+    public int getInFlight(Category category) {
+        return compartments.get(category).inFlight();
+    }
+
+    /**
+     * get the number of calls waiting for a slot in a category.
+     * @param category the category
+     * @return the calls
+     */
+    public int getQueued(Category category) {
+        return compartments.get(category).queued();
+    }
+
+    /**
+     * get the number of calls of a category turned away because the queue was full.
+     * @param category the category
+     * @return the calls
+     */
+    public long getRejected(Category category) {
+        return compartments.get(category).rejected();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Compartment compartment = compartments.get(Category.of(request));
+        Deadline deadline = request.tag(Deadline.class);
+        if(deadline == null) deadline = Deadline.current();
+
+        compartment.acquire(deadline);
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            compartment.release();
+            throw e;
+        }
+        if(response.body() == null) {
+            compartment.release();
+            return response;
+        }
+        return response.newBuilder().body(new ReleasingBody(response.body(), compartment::release)).build();
+    }
+
+    /**
+     * the slots and queue of one category.
+     */
+    private final class Compartment {
+        private final Category category;
+        private int maxInFlight;
+        private int maxQueued;
+        private int inFlight;
+        private int queued;
+        private long rejected;
+
+        Compartment(Category category, int maxInFlight, int maxQueued) {
+            this.category = category;
+            this.maxInFlight = maxInFlight;
+            this.maxQueued = maxQueued;
+        }
+
+        synchronized void setLimits(int maxInFlight, int maxQueued) {
+            this.maxInFlight = maxInFlight;
+            this.maxQueued = maxQueued;
+            notifyAll();
+            report();
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        synchronized int queued() {
+            return queued;
+        }
+
+        synchronized long rejected() {
+            return rejected;
+        }
+
+        synchronized void acquire(Deadline deadline) throws InterruptedIOException {
+            if(inFlight < maxInFlight) {
+                inFlight++;
+                report();
+                return;
+            }
+            if(queued >= maxQueued) {
+                rejected++;
+                MetricsRecorder recorder = Bulkhead.this.recorder;
+                if(recorder != null) recorder.recordBulkheadRejection(category.label());
+                throw new BulkheadFullException(category.label(), queued);
+            }
+            queued++;
+            report();
+            try {
+                while(inFlight >= maxInFlight) {
+                    long millis = 0;
+                    if(deadline != null) {
+                        if(deadline.isExpired()) throw new InterruptedIOException("deadline exceeded");
+                        millis = Math.max(deadline.remaining(TimeUnit.MILLISECONDS), 1);
+                    }
+                    wait(millis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                queued--;
+                report();
+            }
+            inFlight++;
+            report();
+        }
+
+        synchronized void release() {
+            inFlight--;
+            // waiters that gave up do not take the slot, so wake them all rather than one
+            notifyAll();
+            report();
+        }
+
+        /**
+         * called holding the lock, so reports of one bulkhead arrive in order.
+         */
+        synchronized void report() {
+            MetricsRecorder recorder = Bulkhead.this.recorder;
+            if(recorder != null) recorder.recordBulkhead(category.label(), inFlight, maxInFlight, queued);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import com.weebkun.metrics.Endpoints;
+import com.weebkun.utils.CircuitOpenException;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * stops sending calls to a group of endpoints while github is failing them, instead of waiting for every call to time out.
+ *
+ * <p>
+ *     endpoints are grouped by resource: {@code contents}, {@code git}, {@code search}, {@code repos}, {@code graphql},
+ *     or the first segment of the path for the rest, such as {@code users} or {@code orgs}.
+ *     after a number of consecutive failures (5xx responses, timeouts or connection errors) in a group, its circuit opens
+ *     and calls fail at once with a {@link CircuitOpenException}.
+ *     once the open duration has passed the circuit is half-open: a few probe calls are let through,
+ *     and the circuit closes if they all succeed or opens again if one fails.
+ * </p>
+ *
+ * <pre>{@code
+ * CircuitBreaker breaker = new CircuitBreaker()
+ *         .addListener((group, from, to) -> log.warn("{} circuit {} -> {}", group, from, to));
+ * Github.init().addInterceptor(breaker).build();
+ * }</pre>
+ */
+public class CircuitBreaker implements Interceptor {
+
+    /**
+     * the state of a circuit.
+     */
+    public enum State {
+        /**
+         * calls are sent as usual.
+         */
+        CLOSED,
+        /**
+         * calls fail at once without being sent.
+         */
+        OPEN,
+        /**
+         * a few probe calls are sent to check if the endpoints recovered.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * receives the state changes of the circuits.
+     */
+    public interface Listener {
+        /**
+         * called when a circuit changes state.
+         * @param group the endpoint group of the circuit
+         * @param from the previous state
+         * @param to the new state
+         */
+        void onStateChange(String group, State from, State to);
+    }
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private int failureThreshold = 5;
+    private long openNanos = TimeUnit.SECONDS.toNanos(30);
+    private int probes = 2;
+
+    /**
+     * sets the number of consecutive failures that open a circuit.
+     * default: 5
+     * @param failures the number of failures
+     * @return this breaker for chaining
+     */
+    public CircuitBreaker setFailureThreshold(int failures) {
+        if(failures < 1) throw new IllegalArgumentException("threshold must be at least 1.");
+        this.failureThreshold = failures;
+        return this;
+    }
+
+    /**
+     * sets how long an open circuit waits before letting probe calls through.
+     * default: 30 seconds
+     * @param duration the duration
+     * @param unit the unit of the duration
+     * @return this breaker for chaining
+     */
+    public CircuitBreaker setOpenDuration(long duration, TimeUnit unit) {
+        this.openNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * sets the number of probe calls let through by a half-open circuit. all of them must succeed to close it.
+     * default: 2
+     * @param probes the number of probes
+     * @return this breaker for chaining
+     */
+    public CircuitBreaker setProbes(int probes) {
+        if(probes < 1) throw new IllegalArgumentException("probes must be at least 1.");
+        this.probes = probes;
+        return this;
+    }
+
+    /**
+     * adds a listener to receive state changes.
+     * @param listener the listener
+     * @return this breaker for chaining
+     */
+    public CircuitBreaker addListener(Listener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * get the state of the circuit of a group.
+     * @param group the group, such as {@code contents} or {@code repos}
+     * @return the state. closed if no call of the group was made yet.
+     */
+    public State getState(String group) {
+        Circuit circuit = circuits.get(group);
+        return circuit != null ? circuit.state() : State.CLOSED;
+    }
+
+    /**
+     * get the group a url belongs to.
+     * @param url the url
+     * @return the group
+     */
+    public static String group(HttpUrl url) {
+        String[] segments = Endpoints.template(url).substring(1).split("/");
+        if(segments.length >= 4 && "repos".equals(segments[0])) {
+            switch(segments[3]) {
+                case "contents":
+                case "readme":
+                    return "contents";
+                case "git":
+                    return "git";
+            }
+        }
+        return segments[0].isEmpty() ? "root" : segments[0];
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        String group = group(chain.request().url());
+        Circuit circuit = circuits.computeIfAbsent(group, Circuit::new);
+        boolean probe = circuit.acquire();
+        Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException e) {
+            // a call cancelled by the caller says nothing about github
+            if(chain.call().isCanceled()) circuit.release(probe);
+            else circuit.onFailure(probe);
+            throw e;
+        } catch (RuntimeException e) {
+            circuit.release(probe);
+            throw e;
+        }
+        if(response.code() >= 500) circuit.onFailure(probe);
+        else circuit.onSuccess(probe);
+        return response;
+    }
+
+    private void publish(String group, State from, State to) {
+        for(Listener listener : listeners) {
+            try {
+                listener.onStateChange(group, from, to);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final class Circuit {
+        private final String group;
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+        private int probesSent;
+        private int probesPassed;
+
+        Circuit(String group) {
+            this.group = group;
+        }
+
+        synchronized State state() {
+            return state;
+        }
+
+        /**
+         * lets a call through or throws if the circuit is open.
+         * @return true if the call is a probe of a half-open circuit
+         */
+        boolean acquire() {
+            State from;
+            synchronized(this) {
+                if(state == State.CLOSED) return false;
+                if(state == State.OPEN) {
+                    long waited = System.nanoTime() - openedAt;
+                    if(waited < openNanos) throw new CircuitOpenException(group, TimeUnit.NANOSECONDS.toMillis(openNanos - waited));
+                    state = State.HALF_OPEN;
+                    probesSent = 0;
+                    probesPassed = 0;
+                    from = State.OPEN;
+                } else {
+                    from = null;
+                }
+                if(probesSent >= probes) throw new CircuitOpenException(group, 0);
+                probesSent++;
+            }
+            if(from != null) publish(group, from, State.HALF_OPEN);
+            return true;
+        }
+
+        void onSuccess(boolean probe) {
+            State from = null;
+            synchronized(this) {
+                failures = 0;
+                if(probe && state == State.HALF_OPEN && ++probesPassed >= probes) {
+                    from = state;
+                    state = State.CLOSED;
+                }
+            }
+            if(from != null) publish(group, from, State.CLOSED);
+        }
+
+        void onFailure(boolean probe) {
+            State from = null;
+            synchronized(this) {
+                failures++;
+                if(state == State.HALF_OPEN && probe || state == State.CLOSED && failures >= failureThreshold) {
+                    from = state;
+                    state = State.OPEN;
+                    openedAt = System.nanoTime();
+                }
+            }
+            if(from != null) publish(group, from, State.OPEN);
+        }
+
+        synchronized void release(boolean probe) {
+            // give the probe slot back so another call can probe
+            if(probe && state == State.HALF_OPEN) probesSent--;
+        }
+    }
+}
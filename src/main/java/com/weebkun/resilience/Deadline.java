@@ -0,0 +1,218 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.weebkun.utils.DeadlineExceededException;
+import okhttp3.Call;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * a point in time by which an operation must finish, and a way to cancel it earlier.
+ *
+ * <p>
+ *     while a deadline is entered on a thread, every call the library makes on that thread is bound to it:
+ *     the call timeout is set to the time remaining, calls still in flight are cancelled when it passes,
+ *     and operations that make many calls, such as listing every branch, stop before sending the next page.
+ *     calls made past the deadline fail with a {@link DeadlineExceededException}.
+ *     a deadline entered inside another one never ends later than the outer one.
+ * </p>
+ *
+ * <pre>{@code
+ * try(Deadline.Scope scope = Deadline.after(2, TimeUnit.SECONDS).enter()) {
+ *     Branch[] branches = repo.listAllBranches();
+ * } catch (DeadlineExceededException e) {
+ *     // give up
+ * }
+ * }</pre>
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+    private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactoryBuilder().setNameFormat("github-deadline").setDaemon(true).build());
+
+    static {
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private final long deadline;
+    private final Deadline parent;
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private ScheduledFuture<?> timer;
+    // scopes open on any thread. the timer and tracked calls are only released when the last one closes
+    private int entered;
+
+    private Deadline(long deadline, Deadline parent) {
+        this.deadline = deadline;
+        this.parent = parent;
+    }
+
+    /**
+     * creates a deadline some time from now. enter it with {@link #enter()} to apply it.
+     * @param duration the time allowed
+     * @param unit the unit of the duration
+     * @return the deadline
+     */
+    public static Deadline after(long duration, TimeUnit unit) {
+        Deadline parent = current.get();
+        long deadline = System.nanoTime() + unit.toNanos(duration);
+        if(parent != null && parent.deadline - deadline < 0) deadline = parent.deadline;
+        return new Deadline(deadline, parent);
+    }
+
+    /**
+     * get the deadline entered on this thread.
+     * @return the deadline. null if there is none.
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * applies this deadline to the calls made on this thread until the scope is closed.
+     * @return the scope
+     */
+    public Scope enter() {
+        Scope scope = new Scope(current.get());
+        synchronized(this) {
+            entered++;
+        }
+        current.set(this);
+        return scope;
+    }
+
+    /**
+     * runs an operation with this deadline entered.
+     * @param operation the operation
+     * @param <T> the type of the result
+     * @return the result of the operation
+     * @throws DeadlineExceededException if the operation ran past the deadline
+     */
+    public <T> T run(Supplier<T> operation) {
+        Scope scope = enter();
+        try {
+            return operation.get();
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * get the time left.
+     * @param unit the unit to return
+     * @return the time left. 0 if the deadline passed or was cancelled.
+     */
+    public long remaining(TimeUnit unit) {
+        if(isExpired()) return 0;
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * checks if the deadline passed or was cancelled.
+     * @return true if it did
+     */
+    public boolean isExpired() {
+        return cancelled || deadline - System.nanoTime() <= 0 || parent != null && parent.isExpired();
+    }
+
+    /**
+     * throws if the deadline passed or was cancelled. call between steps of a long operation to stop it in time.
+     * @throws DeadlineExceededException if it did
+     */
+    public void check() throws DeadlineExceededException {
+        if(isExpired()) throw new DeadlineExceededException(cancelled ? "operation cancelled." : "deadline exceeded.");
+    }
+
+    /**
+     * cancels the operation: calls in flight are cancelled and no more calls are sent.
+     * may be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        cancelCalls();
+    }
+
+    /**
+     * sets the timeout of a call so that it ends at this deadline. use it for calls made with the client directly.
+     * @param call the call, not yet executed
+     * @return the call
+     */
+    public Call apply(Call call) {
+        call.timeout().deadline(Math.max(remaining(TimeUnit.NANOSECONDS), 1), TimeUnit.NANOSECONDS);
+        return call;
+    }
+
+    /**
+     * keeps track of a call in flight, to cancel it when the deadline passes.
+     */
+    void track(Call call) {
+        calls.add(call);
+        if(parent != null) parent.track(call);
+        synchronized(this) {
+            if(timer == null) timer = scheduler.schedule(this::cancelCalls, Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        }
+        // cancelled between the check and now
+        if(cancelled) call.cancel();
+    }
+
+    void untrack(Call call) {
+        calls.remove(call);
+        if(parent != null) parent.untrack(call);
+    }
+
+    private void cancelCalls() {
+        for(Call call : calls) call.cancel();
+        calls.clear();
+    }
+
+    private synchronized void exit() {
+        if(--entered > 0) return;
+        if(timer != null) timer.cancel(false);
+        timer = null;
+        calls.clear();
+    }
+
+    /**
+     * a deadline entered on a thread. closing it restores the deadline entered before.
+     */
+    public final class Scope implements AutoCloseable {
+        private final Deadline previous;
+        private boolean closed;
+
+        private Scope(Deadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if(closed) return;
+            closed = true;
+            if(previous != null) current.set(previous);
+            else current.remove();
+            // the same deadline can be entered again inside this scope, or on other threads
+            exit();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * binds every call to the {@link Deadline} of the request, or the one entered on the calling thread.
+ * part of the default client, so calls made with the client directly are bound too.
+ *
+ * <p>
+ *     calls past the deadline fail before being sent. otherwise the connect, read and write timeouts are cut
+ *     to the time remaining, and the call is cancelled when the deadline passes, which also stops okhttp's own
+ *     retries and redirects.
+ * </p>
+ */
+public class DeadlineInterceptor implements Interceptor {
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Deadline deadline = chain.request().tag(Deadline.class);
+        if(deadline == null) deadline = Deadline.current();
+        if(deadline == null) return chain.proceed(chain.request());
+        if(deadline.isExpired()) throw new InterruptedIOException("deadline exceeded");
+
+        int remaining = (int) Math.min(Math.max(deadline.remaining(TimeUnit.MILLISECONDS), 1), Integer.MAX_VALUE);
+        // calls that succeed stay tracked, so reading the body is still cancelled at the deadline
+        deadline.track(chain.call());
+        try {
+            return chain.withConnectTimeout(cap(chain.connectTimeoutMillis(), remaining), TimeUnit.MILLISECONDS)
+                    .withReadTimeout(cap(chain.readTimeoutMillis(), remaining), TimeUnit.MILLISECONDS)
+                    .withWriteTimeout(cap(chain.writeTimeoutMillis(), remaining), TimeUnit.MILLISECONDS)
+                    .proceed(chain.request());
+        } catch (IOException e) {
+            deadline.untrack(chain.call());
+            throw e;
+        }
+    }
+
+    private static int cap(int timeout, int remaining) {
+        // 0 means no timeout
+        return timeout == 0 ? remaining : Math.min(timeout, remaining);
+    }
+}
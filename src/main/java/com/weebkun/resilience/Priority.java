@@ -0,0 +1,109 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import okhttp3.Request;
+
+import java.util.function.Supplier;
+
+/**
+ * the priority class of a call, used by {@link PriorityDispatcher} to decide which calls go first.
+ *
+ * <pre>{@code
+ * try(Priority.Scope scope = Priority.BULK.enter()) {
+ *     Organisation.getRepositories("acme", options);
+ * }
+ * }</pre>
+ * calls made outside of any scope are {@link #NORMAL}.
+ */
+public enum Priority {
+    /**
+     * a user is waiting for the answer. goes first, and can use the part of the rate limit reserved for it.
+     */
+    INTERACTIVE,
+    /**
+     * the default.
+     */
+    NORMAL,
+    /**
+     * background work such as sweeps over every repo. goes last, and is deferred or shed when the rate limit runs low.
+     */
+    BULK;
+
+    private static final ThreadLocal<Priority> current = new ThreadLocal<>();
+
+    /**
+     * get the priority entered on this thread.
+     * @return the priority. {@link #NORMAL} if none was entered.
+     */
+    public static Priority current() {
+        Priority priority = current.get();
+        return priority != null ? priority : NORMAL;
+    }
+
+    /**
+     * get the priority of a request: its {@code Priority} tag, or the priority entered on this thread.
+     * @param request the request
+     * @return the priority
+     */
+    public static Priority of(Request request) {
+        Priority priority = request.tag(Priority.class);
+        return priority != null ? priority : current();
+    }
+
+    /**
+     * gives the calls made on this thread this priority until the scope is closed.
+     * @return the scope
+     */
+    public Scope enter() {
+        Scope scope = new Scope(current.get());
+        current.set(this);
+        return scope;
+    }
+
+    /**
+     * runs an operation with this priority.
+     * @param operation the operation
+     * @param <T> the type of the result
+     * @return the result of the operation
+     */
+    public <T> T run(Supplier<T> operation) {
+        Scope scope = enter();
+        try {
+            return operation.get();
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * a priority entered on a thread. closing it restores the priority entered before.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final Priority previous;
+
+        private Scope(Priority previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if(previous != null) current.set(previous);
+            else current.remove();
+        }
+    }
+}
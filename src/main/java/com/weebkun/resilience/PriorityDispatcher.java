@@ -0,0 +1,368 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import com.weebkun.utils.RequestShedException;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lets calls through in order of their {@link Priority}, sharing a number of slots and the rate limit between them.
+ *
+ * <p>
+ *     at most {@code maxConcurrent} calls are in flight at once, and a few of the slots are kept for interactive calls.
+ *     when all are taken, calls wait, and a freed slot goes to the highest priority waiting the longest.
+ *     a call holds its slot until its response body is closed.
+ * </p>
+ * <p>
+ *     the rate limit of each resource ({@code core}, {@code search}, {@code graphql}) is read from the responses.
+ *     once the calls remaining drop to the share reserved for interactive calls (default: 10%), normal calls wait
+ *     for the rate limit to reset. bulk calls already wait below a higher threshold (default: 25%),
+ *     or fail with a {@link RequestShedException} if shedding is turned on.
+ *     waiting calls give up when their {@link Deadline} passes.
+ * </p>
+ * <p>
+ *     instead of a fixed number of slots, an {@link AdaptiveLimit} can set how many calls are in flight,
+ *     raising it while the latency stays flat and cutting it when the api slows down or throttles.
+ * </p>
+ *
+ * <pre>{@code
+ * Github.init().addInterceptor(new PriorityDispatcher().setMaxConcurrent(16)).build();
+ * }</pre>
+ */
+public class PriorityDispatcher implements Interceptor {
+
+    private int maxConcurrent = 16;
+    private int reservedSlots = 2;
+    // read by admit() under the lock of a budget, not this one
+    private volatile double interactiveReserve = 0.1;
+    private volatile double bulkThreshold = 0.25;
+    private volatile boolean shedBulk;
+    private AdaptiveLimit limit;
+
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+    private long sequence;
+    private int inFlight;
+
+    /**
+     * sets the number of calls in flight at once.
+     * default: 16
+     * @param calls the number of calls
+     * @return this dispatcher for chaining
+     */
+    public PriorityDispatcher setMaxConcurrent(int calls) {
+        if(calls < 1) throw new IllegalArgumentException("maxConcurrent must be at least 1.");
+        synchronized(this) {
+            this.maxConcurrent = calls;
+            grant();
+        }
+        return this;
+    }
+
+    /**
+     * lets an adaptive limit set the number of calls in flight, instead of {@link #setMaxConcurrent(int)}.
+     * @param limit the limit. null to go back to the fixed number.
+     * @return this dispatcher for chaining
+     */
+    public synchronized PriorityDispatcher setLimit(AdaptiveLimit limit) {
+        this.limit = limit;
+        grant();
+        return this;
+    }
+
+    /**
+     * sets the number of slots only interactive calls can use.
+     * default: 2
+     * @param slots the number of slots
+     * @return this dispatcher for chaining
+     */
+    public synchronized PriorityDispatcher setReservedSlots(int slots) {
+        if(slots < 0) throw new IllegalArgumentException("reservedSlots cannot be negative.");
+        this.reservedSlots = slots;
+        return this;
+    }
+
+    /**
+     * sets the share of the rate limit only interactive calls can use.
+     * default: 0.1
+     * @param share the share, between 0 and 1
+     * @return this dispatcher for chaining
+     */
+    public PriorityDispatcher setInteractiveReserve(double share) {
+        if(share < 0 || share > 1) throw new IllegalArgumentException("share must be between 0 and 1.");
+        this.interactiveReserve = share;
+        return this;
+    }
+
+    /**
+     * sets the share of the rate limit below which bulk calls are deferred or shed.
+     * default: 0.25
+     * @param share the share, between 0 and 1
+     * @return this dispatcher for chaining
+     */
+    public PriorityDispatcher setBulkThreshold(double share) {
+        if(share < 0 || share > 1) throw new IllegalArgumentException("share must be between 0 and 1.");
+        this.bulkThreshold = share;
+        return this;
+    }
+
+    /**
+     * sets whether bulk calls below the threshold fail at once instead of waiting for the rate limit to reset.
+     * default: false
+     * @param shed true to shed
+     * @return this dispatcher for chaining
+     */
+    public PriorityDispatcher setShedBulk(boolean shed) {
+        this.shedBulk = shed;
+        return this;
+    }
+
+    /**
+     * get the number of calls in flight.
+     * @return the calls
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * get the number of calls waiting for a slot.
+     * @return the calls
+     */
+    public synchronized int getQueued() {
+        return waiters.size();
+    }
+
+    /**
+     * get the calls left in the rate limit of a resource, as last seen.
+     * @param resource the resource, such as {@code core}
+     * @return the calls left. -1 if not known.
+     */
+    public int getRemaining(String resource) {
+        Budget budget = budgets.get(resource);
+        return budget != null ? budget.remaining() : -1;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Priority priority = Priority.of(request);
+        Deadline deadline = request.tag(Deadline.class);
+        if(deadline == null) deadline = Deadline.current();
+        Budget budget = budgets.computeIfAbsent(Resources.of(request.url()), Budget::new);
+
+        admit(budget, priority, deadline);
+        int inFlight = acquire(priority, deadline);
+        AdaptiveLimit limit = this.limit;
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            release();
+            // calls cancelled by the caller or a deadline say nothing about the api
+            if(limit != null && e instanceof IOException && !chain.call().isCanceled() && (deadline == null || !deadline.isExpired())) {
+                limit.onFailure(start);
+            }
+            throw e;
+        }
+        try {
+            // peeking at the body can fail once the slot is taken, so it must still be given back
+            if(limit != null) limit.onResponse(start, System.nanoTime() - start, inFlight, isThrottled(response));
+            budget.update(response);
+        } catch (IOException | RuntimeException e) {
+            release();
+            response.close();
+            throw e;
+        }
+        if(response.body() == null) {
+            release();
+            return response;
+        }
+        return response.newBuilder().body(new ReleasingBody(response.body(), this::release)).build();
+    }
+
+    /**
+     * checks if a response is a secondary rate limit, which asks for fewer calls at once.
+     * primary rate limits answer 403 with no calls remaining, and are handled by the rate limit budget instead.
+     */
+    private static boolean isThrottled(Response response) throws IOException {
+        if(response.code() == 429) return true;
+        if(response.code() != 403) return false;
+        if(response.header("Retry-After") != null) return true;
+        // other 403s, such as missing permissions, only differ in the message
+        return response.peekBody(1024).string().contains("secondary rate limit");
+    }
+
+    /**
+     * waits until the rate limit allows a call of this priority.
+     */
+    private void admit(Budget budget, Priority priority, Deadline deadline) throws InterruptedIOException {
+        while(true) {
+            long wait;
+            synchronized(budget) {
+                long now = System.currentTimeMillis();
+                if(priority == Priority.INTERACTIVE || budget.limit < 0 || now >= budget.reset) {
+                    budget.take();
+                    return;
+                }
+                int floor = (int) Math.ceil(budget.limit * (priority == Priority.NORMAL ? interactiveReserve : bulkThreshold));
+                if(budget.remaining > floor) {
+                    budget.take();
+                    return;
+                }
+                if(priority == Priority.BULK && shedBulk) throw new RequestShedException(budget.resource, budget.remaining);
+                wait = budget.reset - now;
+            }
+            sleep(Math.min(wait, TimeUnit.SECONDS.toMillis(1)), deadline);
+        }
+    }
+
+    private static void sleep(long millis, Deadline deadline) throws InterruptedIOException {
+        if(deadline != null) {
+            if(deadline.isExpired()) throw new InterruptedIOException("deadline exceeded");
+            millis = Math.min(millis, Math.max(deadline.remaining(TimeUnit.MILLISECONDS), 1));
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * waits for a slot.
+     * @return the calls in flight once the slot was taken, including this one
+     */
+    private synchronized int acquire(Priority priority, Deadline deadline) throws InterruptedIOException {
+        Waiter waiter = new Waiter(priority, sequence++);
+        waiters.add(waiter);
+        grant();
+        try {
+            while(!waiter.granted) {
+                long millis = 0;
+                if(deadline != null) {
+                    if(deadline.isExpired()) throw new InterruptedIOException("deadline exceeded");
+                    millis = Math.max(deadline.remaining(TimeUnit.MILLISECONDS), 1);
+                }
+                wait(millis);
+            }
+            return inFlight;
+        } catch (InterruptedException | InterruptedIOException e) {
+            if(waiter.granted) {
+                release();
+            } else {
+                waiters.remove(waiter);
+            }
+            if(e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            throw (InterruptedIOException) e;
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        grant();
+    }
+
+    /**
+     * hands free slots to the waiters in order of priority.
+     */
+    private void grant() {
+        boolean granted = false;
+        while(!waiters.isEmpty()) {
+            Waiter next = waiters.peek();
+            int max = limit != null ? limit.getLimit() : maxConcurrent;
+            int slots = next.priority == Priority.INTERACTIVE ? max : max - reservedSlots;
+            if(inFlight >= Math.max(slots, 1)) break;
+            waiters.poll();
+            next.granted = true;
+            inFlight++;
+            granted = true;
+        }
+        if(granted) notifyAll();
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        private final Priority priority;
+        private final long sequence;
+        private boolean granted;
+
+        Waiter(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * the rate limit of a resource, as last reported by the api and counted down by the calls let through since.
+     */
+    private static final class Budget {
+        private final String resource;
+        private int limit = -1;
+        private int remaining = -1;
+        // epoch millis
+        private long reset;
+
+        Budget(String resource) {
+            this.resource = resource;
+        }
+
+        synchronized int remaining() {
+            return remaining;
+        }
+
+        void take() {
+            if(remaining > 0) remaining--;
+        }
+
+        synchronized void update(Response response) {
+            String limit = response.header("X-RateLimit-Limit");
+            String remaining = response.header("X-RateLimit-Remaining");
+            String reset = response.header("X-RateLimit-Reset");
+            if(limit == null || remaining == null || reset == null) return;
+            try {
+                this.limit = Integer.parseInt(limit);
+                long resetMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(reset));
+                // responses can arrive out of order, keep the lowest count of the current window
+                int left = Integer.parseInt(remaining);
+                this.remaining = resetMillis == this.reset ? Math.min(this.remaining, left) : left;
+                this.reset = resetMillis;
+            } catch (NumberFormatException e) {
+                // leave the budget as it was
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+
+/**
+ * a response body that runs an action once when it is closed, such as freeing the slot its call held.
+ */
+final class ReleasingBody extends ResponseBody {
+    private final ResponseBody delegate;
+    private final Runnable release;
+    private BufferedSource source;
+    private boolean released;
+
+    ReleasingBody(ResponseBody delegate, Runnable release) {
+        this.delegate = delegate;
+        this.release = release;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public BufferedSource source() {
+        if(source == null) {
+            source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if(!released) {
+                            released = true;
+                            release.run();
+                        }
+                    }
+                }
+            });
+        }
+        return source;
+    }
+}
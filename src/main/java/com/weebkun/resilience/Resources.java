@@ -0,0 +1,38 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import okhttp3.HttpUrl;
+
+/**
+ * the rate limit resources of the api.
+ */
+final class Resources {
+
+    private Resources() {}
+
+    /**
+     * get the rate limit resource a url counts against: {@code core}, {@code search} or {@code graphql}.
+     * @param url the url
+     * @return the resource
+     */
+    static String of(HttpUrl url) {
+        String path = url.encodedPath();
+        if(path.endsWith("/graphql")) return "graphql";
+        return path.contains("/search/") ? "search" : "core";
+    }
+}
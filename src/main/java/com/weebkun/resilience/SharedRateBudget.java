@@ -0,0 +1,287 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.resilience;
+
+import com.weebkun.utils.RequestShedException;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a rate limit budget shared by every process on a host that opens the same file.
+ *
+ * <p>
+ *     each process tracking the rate limit on its own lets several processes using the same token overshoot it together.
+ *     with a shared budget, every call reserves one call from a counter in a small memory-mapped file before it is sent,
+ *     and the counter is lowered to the {@code X-RateLimit-Remaining} of every response.
+ *     the counters are updated with atomic compare-and-set operations on the mapped file, so no lock or server is needed.
+ *     tokens are stored as hashes, never in the clear.
+ * </p>
+ * <p>
+ *     when the budget of a token is used up, calls wait for the rate limit to reset, up to {@code maxWait} (default: a minute)
+ *     or their {@link Deadline}, and fail with a {@link RequestShedException} past that.
+ *     interceptors added through {@link com.weebkun.github.Github.Builder} run after the authorization header is set.
+ * </p>
+ *
+ * <pre>{@code
+ * SharedRateBudget budget = SharedRateBudget.open(new File("/tmp/github-budget"));
+ * Github.init().addInterceptor(budget).build();
+ * }</pre>
+ */
+public final class SharedRateBudget implements Interceptor, Closeable {
+
+    private static final int MAGIC = 0x47484242; // GHBB
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int SLOTS = 128;
+    // key, limit, remaining, reset (epoch seconds)
+    private static final int SLOT = 4 * Long.BYTES;
+    private static final int KEY = 0;
+    private static final int LIMIT = 8;
+    private static final int REMAINING = 16;
+    private static final int RESET = 24;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private long maxWait = TimeUnit.MINUTES.toMillis(1);
+
+    private SharedRateBudget(FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * opens a shared budget, creating the file if it does not exist.
+     * @param file the file. every process sharing the budget must open the same one.
+     * @return the budget
+     * @throws IOException if the file cannot be opened or is not a budget file
+     */
+    public static SharedRateBudget open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int size = HEADER + SLOTS * SLOT;
+            MappedByteBuffer buffer;
+            // only one process writes the header of a new file
+            FileLock lock = channel.lock();
+            try {
+                if(channel.size() < size) {
+                    if(channel.size() != 0) throw new IOException(file + " is not a rate limit budget file.");
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    buffer.order(ByteOrder.BIG_ENDIAN).putInt(0, MAGIC).putInt(4, VERSION).putInt(8, SLOTS);
+                    buffer.force();
+                } else {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    if(buffer.getInt(0) != MAGIC) throw new IOException(file + " is not a rate limit budget file.");
+                    if(buffer.getInt(4) != VERSION || buffer.getInt(8) != SLOTS) throw new IOException(file + " has an unsupported layout.");
+                }
+            } finally {
+                lock.release();
+            }
+            return new SharedRateBudget(channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * sets the longest a call waits for the rate limit to reset when the budget is used up.
+     * default: 1 minute
+     * @param wait the time
+     * @param unit the unit of the time
+     * @return this budget for chaining
+     */
+    public SharedRateBudget setMaxWait(long wait, TimeUnit unit) {
+        this.maxWait = unit.toMillis(wait);
+        return this;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String authorization = request.header("authorization");
+        String resource = Resources.of(request.url());
+        int slot = slot(key(authorization, resource));
+        Deadline deadline = request.tag(Deadline.class);
+        if(deadline == null) deadline = Deadline.current();
+
+        long waitUntil = System.currentTimeMillis() + maxWait;
+        while(!tryAcquire(slot)) {
+            long now = System.currentTimeMillis();
+            long reset = TimeUnit.SECONDS.toMillis(get(slot, RESET));
+            if(reset > waitUntil) throw new RequestShedException(resource, 0);
+            long sleep = Math.max(Math.min(reset - now, TimeUnit.SECONDS.toMillis(1)), 1);
+            if(deadline != null) {
+                if(deadline.isExpired()) throw new InterruptedIOException("deadline exceeded");
+                sleep = Math.min(sleep, Math.max(deadline.remaining(TimeUnit.MILLISECONDS), 1));
+            }
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        Response response = chain.proceed(request);
+        String limit = response.header("X-RateLimit-Limit");
+        String remaining = response.header("X-RateLimit-Remaining");
+        String reset = response.header("X-RateLimit-Reset");
+        if(limit != null && remaining != null && reset != null) {
+            try {
+                update(slot, Long.parseLong(limit), Long.parseLong(remaining), Long.parseLong(reset));
+            } catch (NumberFormatException e) {
+                // leave the budget as it was
+            }
+        }
+        return response;
+    }
+
+    /**
+     * reserves one call from the budget of a token.
+     * @param authorization the authorization header of the call. null for unauthenticated calls.
+     * @param resource the rate limit resource, such as {@code core}
+     * @return false if the budget is used up until the rate limit resets
+     */
+    public boolean tryAcquire(String authorization, String resource) {
+        return tryAcquire(slot(key(authorization, resource)));
+    }
+
+    /**
+     * updates the budget of a token with the rate limit reported by the api.
+     * @param authorization the authorization header of the call. null for unauthenticated calls.
+     * @param resource the rate limit resource, such as {@code core}
+     * @param limit the {@code X-RateLimit-Limit}
+     * @param remaining the {@code X-RateLimit-Remaining}
+     * @param reset the {@code X-RateLimit-Reset}, in epoch seconds
+     */
+    public void update(String authorization, String resource, long limit, long remaining, long reset) {
+        update(slot(key(authorization, resource)), limit, remaining, reset);
+    }
+
+    /**
+     * get the calls left in the budget of a token.
+     * @param authorization the authorization header of the calls. null for unauthenticated calls.
+     * @param resource the rate limit resource, such as {@code core}
+     * @return the calls left. -1 if not known, e.g. before the first response or after the rate limit reset.
+     */
+    public long getRemaining(String authorization, String resource) {
+        int slot = slot(key(authorization, resource));
+        long reset = get(slot, RESET);
+        if(reset == 0 || System.currentTimeMillis() >= TimeUnit.SECONDS.toMillis(reset)) return -1;
+        return get(slot, REMAINING);
+    }
+
+    private boolean tryAcquire(int slot) {
+        while(true) {
+            long reset = get(slot, RESET);
+            // nothing known about the current window yet, the next response fills it in
+            if(reset == 0 || System.currentTimeMillis() >= TimeUnit.SECONDS.toMillis(reset)) return true;
+            long remaining = get(slot, REMAINING);
+            if(remaining <= 0) return false;
+            if(cas(slot, REMAINING, remaining, remaining - 1)) return true;
+        }
+    }
+
+    private void update(int slot, long limit, long remaining, long reset) {
+        LONGS.setVolatile(buffer, slot + LIMIT, limit);
+        while(true) {
+            long storedReset = get(slot, RESET);
+            if(reset > storedReset) {
+                // a new window. the process that moves the reset also sets the count for it
+                if(cas(slot, RESET, storedReset, reset)) {
+                    LONGS.setVolatile(buffer, slot + REMAINING, remaining);
+                    return;
+                }
+            } else if(reset < storedReset) {
+                // a late response from an older window
+                return;
+            } else {
+                // the same window: reservations not answered yet are not in the response, so keep the lower count
+                long stored = get(slot, REMAINING);
+                if(remaining >= stored || cas(slot, REMAINING, stored, remaining)) return;
+            }
+        }
+    }
+
+    /**
+     * finds the slot of a key, claiming a free one if the key is new.
+     * @return the byte offset of the slot
+     */
+    private int slot(long key) {
+        int start = (int) Math.floorMod(key, (long) SLOTS);
+        for(int i = 0; i < SLOTS; i++) {
+            int slot = HEADER + ((start + i) % SLOTS) * SLOT;
+            long stored = get(slot, KEY);
+            if(stored == key) return slot;
+            if(stored == 0 && (cas(slot, KEY, 0, key) || get(slot, KEY) == key)) return slot;
+        }
+        throw new IllegalStateException("the rate limit budget file is full.");
+    }
+
+    private long get(int slot, int field) {
+        return (long) LONGS.getVolatile(buffer, slot + field);
+    }
+
+    private boolean cas(int slot, int field, long expected, long value) {
+        return LONGS.compareAndSet(buffer, slot + field, expected, value);
+    }
+
+    /**
+     * hashes a token and resource into a key. 0 marks a free slot, so it is never returned.
+     */
+    private static long key(String authorization, String resource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((authorization != null ? authorization : "").getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(resource.getBytes(StandardCharsets.UTF_8));
+            long key = 0;
+            for(int i = 0; i < 8; i++) key = key << 8 | (hash[i] & 0xff);
+            return key != 0 ? key : 1;
+        } catch (NoSuchAlgorithmException e) {
+            // every jdk has sha-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * closes the file. the mapping is released by the garbage collector.
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.utils;
+
+import com.weebkun.auth.AuthenticationStatus;
+
+/**
+ * thrown when the oauth device flow ends without a token, e.g. because the user denied access or the code expired.
+ */
+public class AuthenticationFailedException extends RuntimeException {
+
+    private final AuthenticationStatus status;
+
+    public AuthenticationFailedException(AuthenticationStatus status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * get the status that ended the authentication.
+     * @return the status
+     */
+    public AuthenticationStatus getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.utils;
+
+/**
+ * thrown instead of sending a call when its bulkhead has as many calls in flight and queued as it allows.
+ */
+public class BulkheadFullException extends RuntimeException {
+
+    public final String bulkhead;
+    public final int queued;
+
+    public BulkheadFullException(String bulkhead, int queued) {
+        super(String.format("bulkhead %s is full, %d calls already queued.", bulkhead, queued));
+        this.bulkhead = bulkhead;
+        this.queued = queued;
+    }
+}
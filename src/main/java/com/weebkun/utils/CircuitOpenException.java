@@ -0,0 +1,32 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.utils;
+
+/**
+ * thrown instead of sending a call while the circuit breaker of its endpoint group is open.
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    public final String group;
+    public final long retryAfterMillis;
+
+    public CircuitOpenException(String group, long retryAfterMillis) {
+        super(String.format("circuit for %s is open, not sending calls for another %d ms.", group, retryAfterMillis));
+        this.group = group;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+}
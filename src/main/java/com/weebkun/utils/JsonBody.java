@@ -0,0 +1,188 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.utils;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * a json request body that is written straight into the request, with no intermediate strings.
+ * values are escaped by moshi's {@link JsonWriter}.
+ *
+ * <pre>{@code
+ * RequestBody body = JsonBody.object()
+ *         .put("message", message)
+ *         .putBase64("content", bytes)
+ *         .put("branch", branch);
+ * }</pre>
+ * fields with a null value are left out. the body can be written more than once, e.g. when a call is retried.
+ */
+public final class JsonBody extends RequestBody {
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    // a multiple of 3 so every chunk encodes without padding
+    private static final int BASE64_CHUNK = 3 * 1024;
+
+    private final List<Field> fields;
+    private final Field value;
+
+    private JsonBody(List<Field> fields, Field value) {
+        this.fields = fields;
+        this.value = value;
+    }
+
+    /**
+     * creates an empty object body. add fields with the {@code put} methods.
+     * @return the body
+     */
+    public static JsonBody object() {
+        return new JsonBody(new ArrayList<>(), null);
+    }
+
+    /**
+     * creates a body holding a value written by a moshi adapter.
+     * @param adapter the adapter
+     * @param value the value
+     * @param <T> the type of the value
+     * @return the body
+     */
+    public static <T> JsonBody of(JsonAdapter<T> adapter, T value) {
+        return new JsonBody(null, writer -> adapter.toJson(writer, value));
+    }
+
+    private JsonBody add(String name, Field field) {
+        if(fields == null) throw new IllegalStateException("fields can only be added to an object body.");
+        fields.add(writer -> {
+            writer.name(name);
+            field.write(writer);
+        });
+        return this;
+    }
+
+    /**
+     * adds a string field.
+     * @param name the name
+     * @param value the value. null to leave the field out.
+     * @return this body for chaining
+     */
+    public JsonBody put(String name, String value) {
+        return value == null ? this : add(name, writer -> writer.value(value));
+    }
+
+    /**
+     * adds a boolean field.
+     * @param name the name
+     * @param value the value
+     * @return this body for chaining
+     */
+    public JsonBody put(String name, boolean value) {
+        return add(name, writer -> writer.value(value));
+    }
+
+    /**
+     * adds a number field.
+     * @param name the name
+     * @param value the value
+     * @return this body for chaining
+     */
+    public JsonBody put(String name, long value) {
+        return add(name, writer -> writer.value(value));
+    }
+
+    /**
+     * adds a string array field.
+     * @param name the name
+     * @param values the values. null to leave the field out.
+     * @return this body for chaining
+     */
+    public JsonBody put(String name, String[] values) {
+        if(values == null) return this;
+        return add(name, writer -> {
+            writer.beginArray();
+            for(String value : values) writer.value(value);
+            writer.endArray();
+        });
+    }
+
+    /**
+     * adds a number array field.
+     * @param name the name
+     * @param values the values. null to leave the field out.
+     * @return this body for chaining
+     */
+    public JsonBody put(String name, int[] values) {
+        if(values == null) return this;
+        return add(name, writer -> {
+            writer.beginArray();
+            for(int value : values) writer.value(value);
+            writer.endArray();
+        });
+    }
+
+    /**
+     * adds a field with bytes encoded as base64, as used for file contents.
+     * the bytes are encoded in small chunks while writing, so the encoded string is never held in memory.
+     * @param name the name
+     * @param content the bytes. null to leave the field out.
+     * @return this body for chaining
+     */
+    public JsonBody putBase64(String name, byte[] content) {
+        if(content == null) return this;
+        return add(name, writer -> {
+            Base64.Encoder encoder = Base64.getEncoder();
+            try(BufferedSink sink = writer.valueSink()) {
+                sink.writeByte('"');
+                for(int offset = 0; offset < content.length; offset += BASE64_CHUNK) {
+                    sink.write(encoder.encode(ByteBuffer.wrap(content, offset, Math.min(BASE64_CHUNK, content.length - offset))));
+                }
+                sink.writeByte('"');
+            }
+        });
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        JsonWriter writer = JsonWriter.of(sink);
+        if(value != null) {
+            value.write(writer);
+        } else {
+            writer.beginObject();
+            for(Field field : fields) field.write(writer);
+            writer.endObject();
+        }
+        // the sink belongs to okhttp, so flush instead of closing it
+        writer.flush();
+    }
+
+    private interface Field {
+        void write(JsonWriter writer) throws IOException;
+    }
+}
@@ -1,13 +1,13 @@
 package com.weebkun.utils;
 
-import com.weebkun.tree.NTree;
-import com.weebkun.tree.Node;
-import kotlin.Pair;
+import okio.Buffer;
 
+import java.io.IOException;
 import java.util.Map;
 
 /**
  * helper class to parse json fields to a json string.
+ * to send the fields as a request body, use {@link JsonBody}, which writes them straight into the request.
  */
 public class JsonParser {
 
@@ -26,12 +26,15 @@ public class JsonParser {
      * @return the json string
      */
     public String parse() {
-        String json = "{";
-
-        //iterate through map and construct json string from each entry
-        for(Map.Entry<String, String> field : fields.entrySet()) {
-            json = json.concat(String.format("\"%s\": \"%s\"", field.getKey(), field.getValue()));
+        JsonBody body = JsonBody.object();
+        for(Map.Entry<String, String> field : fields.entrySet()) body.put(field.getKey(), field.getValue());
+        Buffer json = new Buffer();
+        try {
+            body.writeTo(json);
+        } catch (IOException e) {
+            // a Buffer does not throw
+            throw new IllegalStateException(e);
         }
-        return json + "}";
+        return json.readUtf8();
     }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.utils;
+
+/**
+ * thrown instead of sending a call, to stay within the rate limit or keep the rest of it for more important calls.
+ */
+public class RequestShedException extends RuntimeException {
+
+    public final String resource;
+    public final int remaining;
+
+    public RequestShedException(String resource, int remaining) {
+        super(String.format("call not sent, only %d calls left in the %s rate limit.", remaining, resource));
+        this.resource = resource;
+        this.remaining = remaining;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+/**
+ * sent when a branch protection rule is created, edited or deleted.
+ */
+public class BranchProtectionRuleEvent extends WebhookEvent {
+    public Rule rule;
+
+    /**
+     * a branch protection rule.
+     * the enforcement levels can be off, non_admins or everyone.
+     */
+    public static class Rule {
+        public long id;
+        public long repository_id;
+        /**
+         * the name pattern of the branches this rule applies to.
+         */
+        public String name;
+        public String created_at;
+        public String updated_at;
+        public boolean admin_enforced;
+        public String[] required_status_checks;
+        public boolean strict_required_status_checks_policy;
+        public String required_status_checks_enforcement_level;
+        public int required_approving_review_count;
+        public boolean dismiss_stale_reviews_on_push;
+        public boolean require_code_owner_review;
+        public String signature_requirement_enforcement_level;
+        public String linear_history_requirement_enforcement_level;
+        public String allow_force_pushes_enforcement_level;
+        public String allow_deletions_enforcement_level;
+    }
+}
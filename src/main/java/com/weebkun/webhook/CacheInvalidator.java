@@ -0,0 +1,70 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+import com.weebkun.github.EntityCache;
+import com.weebkun.github.Repository;
+
+/**
+ * drops the entries of an {@link EntityCache} changed by the events received.
+ */
+class CacheInvalidator implements WebhookListener {
+
+    private final EntityCache cache;
+
+    CacheInvalidator(EntityCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void onPush(PushEvent event) {
+        // a push moves a branch and changes the contents, languages and contributors of the repo
+        invalidate(path(event.repository), "");
+    }
+
+    @Override
+    public void onRef(RefEvent event) {
+        // tags are not cached
+        if(event.isBranch()) invalidate(path(event.repository), "/branches");
+    }
+
+    @Override
+    public void onRepository(RepositoryEvent event) {
+        invalidate(path(event.repository), "");
+        // a renamed or transferred repo is also cached under its old name
+        if(event.changes == null || event.repository == null || event.repository.owner == null) return;
+        String owner = event.repository.owner.getName();
+        String name = event.repository.name;
+        if(event.changes.repository != null && event.changes.repository.name != null) name = event.changes.repository.name.from;
+        if(event.changes.owner != null && event.changes.owner.from != null) owner = event.changes.owner.from.login;
+        if(owner != null && name != null) invalidate(String.format("/repos/%s/%s", owner, name), "");
+    }
+
+    @Override
+    public void onBranchProtectionRule(BranchProtectionRuleEvent event) {
+        // a rule can match any number of branches
+        invalidate(path(event.repository), "/branches");
+    }
+
+    private void invalidate(String path, String under) {
+        if(path != null) cache.invalidatePath(path + under);
+    }
+
+    private static String path(Repository repository) {
+        return repository != null && repository.full_name != null ? "/repos/" + repository.full_name : null;
+    }
+}
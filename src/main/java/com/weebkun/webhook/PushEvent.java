@@ -0,0 +1,76 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+/**
+ * sent when commits are pushed to a branch or tag.
+ */
+public class PushEvent extends WebhookEvent {
+    /**
+     * the full ref that was pushed. e.g. refs/heads/main
+     */
+    public String ref;
+    /**
+     * the sha of the most recent commit on {@code ref} before the push.
+     */
+    public String before;
+    /**
+     * the sha of the most recent commit on {@code ref} after the push.
+     */
+    public String after;
+    public boolean created;
+    public boolean deleted;
+    public boolean forced;
+    public String base_ref;
+    public String compare;
+    public PushCommit[] commits;
+    public PushCommit head_commit;
+
+    /**
+     * get the name of the branch that was pushed to.
+     * @return the branch name. null if a tag was pushed.
+     */
+    public String getBranch() {
+        return ref != null && ref.startsWith("refs/heads/") ? ref.substring("refs/heads/".length()) : null;
+    }
+
+    /**
+     * a commit in a push event.
+     */
+    public static class PushCommit {
+        public String id;
+        public String tree_id;
+        public boolean distinct;
+        public String message;
+        public String timestamp;
+        public String url;
+        public Author author;
+        public Author committer;
+        public String[] added;
+        public String[] removed;
+        public String[] modified;
+    }
+
+    /**
+     * the git author or committer of a commit.
+     */
+    public static class Author {
+        public String name;
+        public String email;
+        public String username;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+/**
+ * sent when a branch or tag is created or deleted.
+ * the event name tells them apart: {@code create} or {@code delete}.
+ */
+public class RefEvent extends WebhookEvent {
+    /**
+     * the name of the branch or tag, without the refs/heads/ or refs/tags/ prefix.
+     */
+    public String ref;
+    /**
+     * either branch or tag.
+     */
+    public String ref_type;
+    public String master_branch;
+    public String description;
+    public String pusher_type;
+
+    /**
+     * checks if this event is about a branch.
+     * @return true for a branch, false for a tag
+     */
+    public boolean isBranch() {
+        return "branch".equals(ref_type);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+/**
+ * sent when a repository is created, deleted, archived, unarchived, publicized, privatized, edited, renamed or transferred.
+ * the action tells them apart.
+ */
+public class RepositoryEvent extends WebhookEvent {
+    /**
+     * the previous values of changed fields, e.g. the old name of a renamed repo. only set for some actions.
+     */
+    public Changes changes;
+
+    /**
+     * the previous values of a repository event.
+     */
+    public static class Changes {
+        public Change repository;
+        public Change owner;
+    }
+
+    /**
+     * a changed repository or owner.
+     */
+    public static class Change {
+        public From name;
+        public From from;
+    }
+
+    /**
+     * the previous value of a change.
+     */
+    public static class From {
+        public String from;
+        public String login;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+import com.weebkun.github.Organisation;
+import com.weebkun.github.Repository;
+import com.weebkun.github.User;
+
+/**
+ * a webhook event delivered by github.
+ * events without a more specific type are delivered as this class.
+ * see <a href="https://docs.github.com/en/free-pro-team@latest/developers/webhooks-and-events/webhook-events-and-payloads">the github docs</a>
+ * for the payload of each event.
+ */
+public class WebhookEvent {
+    transient String event;
+    transient String delivery;
+
+    /**
+     * the action that triggered the event, e.g. created, edited or deleted. not set for every event.
+     */
+    public String action;
+    public Repository repository;
+    public Organisation organization;
+    public User sender;
+
+    /**
+     * get the name of this event, taken from the {@code X-GitHub-Event} header. e.g. push
+     * @return the event name
+     */
+    public String getEvent() {
+        return event;
+    }
+
+    /**
+     * get the unique id of this delivery, taken from the {@code X-GitHub-Delivery} header.
+     * @return the delivery id
+     */
+    public String getDelivery() {
+        return delivery;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+/**
+ * receives the events of a {@link WebhookReceiver}.
+ * override the methods of the events you are interested in.
+ * {@link #onEvent(WebhookEvent)} is called for every event, before the more specific method.
+ */
+public interface WebhookListener {
+
+    /**
+     * called for every event received.
+     * @param event the event
+     */
+    default void onEvent(WebhookEvent event) {}
+
+    /**
+     * called when commits are pushed.
+     * @param event the push event
+     */
+    default void onPush(PushEvent event) {}
+
+    /**
+     * called when a branch or tag is created or deleted.
+     * @param event the create or delete event
+     */
+    default void onRef(RefEvent event) {}
+
+    /**
+     * called when a repository is created, changed or deleted.
+     * @param event the repository event
+     */
+    default void onRepository(RepositoryEvent event) {}
+
+    /**
+     * called when a branch protection rule is created, edited or deleted.
+     * @param event the branch protection rule event
+     */
+    default void onBranchProtectionRule(BranchProtectionRuleEvent event) {}
+}
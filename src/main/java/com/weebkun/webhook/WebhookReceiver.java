@@ -0,0 +1,280 @@
+/*
+Copyright 2020 weebkun
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.weebkun.webhook;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.squareup.moshi.JsonDataException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.weebkun.github.EntityCache;
+import com.weebkun.github.Github;
+import com.weebkun.utils.InvalidSignatureException;
+import okio.Buffer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * receives github webhooks over http and publishes them to {@link WebhookListener}s.
+ * built on the jdk's {@link HttpServer}, so no other server is needed.
+ *
+ * <p>
+ *     every delivery is checked against its {@code X-Hub-Signature-256} header using the webhook's secret,
+ *     and rejected with 401 if it does not match.
+ *     the payload is then decoded into an event class based on the {@code X-GitHub-Event} header
+ *     and passed to the listeners after the response is sent.
+ * </p>
+ * to try it locally, post a recorded payload with the matching headers to the receiver.
+ * use {@link #handler()} to mount the receiver on an existing {@link HttpServer} instead of starting a new one.
+ */
+public class WebhookReceiver {
+
+    // github does not send payloads larger than 25 MB
+    private static final int MAX_PAYLOAD = 25 * 1024 * 1024;
+
+    private final SecretKeySpec key;
+    private final List<WebhookListener> listeners = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * creates a receiver for webhooks signed with {@code secret}.
+     * @param secret the secret set on the webhook
+     */
+    public WebhookReceiver(String secret) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    /**
+     * adds a listener to receive events.
+     * @param listener the listener
+     * @return this receiver for chaining
+     */
+    public WebhookReceiver addListener(WebhookListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * creates a listener that drops the entries of an entity cache changed by push, create, delete,
+     * repository and branch protection rule events, so reads see changes made outside the library at once.
+     *
+     * <pre>{@code
+     * receiver.addListener(WebhookReceiver.invalidating(Github.getEntityCache()));
+     * }</pre>
+     * @param cache the cache
+     * @return the listener
+     */
+    public static WebhookListener invalidating(EntityCache cache) {
+        return new CacheInvalidator(Objects.requireNonNull(cache));
+    }
+
+    /**
+     * removes a listener.
+     * @param listener the listener
+     */
+    public void removeListener(WebhookListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * starts a new http server listening for webhooks on a port, at any path.
+     * @param port the port
+     * @throws IOException if the server cannot be started
+     */
+    public void start(int port) throws IOException {
+        start(new InetSocketAddress(port));
+    }
+
+    /**
+     * starts a new http server listening for webhooks on an address, at any path.
+     * @param address the address to bind to
+     * @throws IOException if the server cannot be started
+     */
+    public void start(InetSocketAddress address) throws IOException {
+        if(server != null) throw new IllegalStateException("receiver already started.");
+        server = HttpServer.create(address, 0);
+        server.createContext("/", handler());
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("github-webhook-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * stops the server started by {@link #start(int)} and its worker threads.
+     * deliveries already being handled still reach the listeners.
+     */
+    public void stop() {
+        if(server == null) return;
+        server.stop(0);
+        server = null;
+        executor.shutdown();
+        executor = null;
+    }
+
+    /**
+     * gets the address of the running server. useful when started on port 0.
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * gets the http handler of this receiver, to mount it on an existing server.
+     * @return the handler
+     */
+    public HttpHandler handler() {
+        return this::handle;
+    }
+
+    /**
+     * verifies and decodes a delivery and passes it to the listeners.
+     * use this to feed deliveries received by another server.
+     * @param event the value of the {@code X-GitHub-Event} header
+     * @param delivery the value of the {@code X-GitHub-Delivery} header
+     * @param signature the value of the {@code X-Hub-Signature-256} header
+     * @param payload the raw payload
+     * @return the decoded event
+     * @throws InvalidSignatureException if the signature does not match the payload
+     * @throws IOException if the payload cannot be decoded
+     */
+    public WebhookEvent receive(String event, String delivery, String signature, byte[] payload) throws IOException {
+        WebhookEvent decoded = decode(event, delivery, signature, payload);
+        publish(decoded);
+        return decoded;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        WebhookEvent event;
+        try(InputStream body = exchange.getRequestBody()) {
+            if(!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405);
+                return;
+            }
+            byte[] payload = body.readNBytes(MAX_PAYLOAD + 1);
+            if(payload.length > MAX_PAYLOAD) {
+                respond(exchange, 413);
+                return;
+            }
+            event = decode(exchange.getRequestHeaders().getFirst("X-GitHub-Event"),
+                    exchange.getRequestHeaders().getFirst("X-GitHub-Delivery"),
+                    exchange.getRequestHeaders().getFirst("X-Hub-Signature-256"),
+                    payload);
+        } catch (InvalidSignatureException e) {
+            respond(exchange, 401);
+            return;
+        } catch (IOException | JsonDataException e) {
+            respond(exchange, 400);
+            return;
+        }
+        // respond before notifying so slow listeners do not make github time out
+        respond(exchange, 204);
+        publish(event);
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private WebhookEvent decode(String event, String delivery, String signature, byte[] payload) throws IOException {
+        verify(signature, payload);
+        Class<? extends WebhookEvent> type;
+        switch(event != null ? event : "") {
+            case "push":
+                type = PushEvent.class;
+                break;
+            case "create":
+            case "delete":
+                type = RefEvent.class;
+                break;
+            case "repository":
+                type = RepositoryEvent.class;
+                break;
+            case "branch_protection_rule":
+                type = BranchProtectionRuleEvent.class;
+                break;
+            default:
+                type = WebhookEvent.class;
+        }
+        WebhookEvent decoded = Github.getMoshi().adapter(type).fromJson(new Buffer().write(payload));
+        if(decoded == null) throw new IOException("empty payload.");
+        decoded.event = event;
+        decoded.delivery = delivery;
+        return decoded;
+    }
+
+    private void verify(String signature, byte[] payload) {
+        if(signature == null || !signature.startsWith("sha256=")) throw new InvalidSignatureException("missing X-Hub-Signature-256 header.");
+        byte[] expected;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            expected = mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] received;
+        try {
+            received = hex(signature.substring("sha256=".length()));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSignatureException();
+        }
+        // constant time comparison so the signature cannot be guessed byte by byte
+        if(!MessageDigest.isEqual(expected, received)) throw new InvalidSignatureException();
+    }
+
+    private static byte[] hex(String hex) {
+        if(hex.length() % 2 != 0) throw new IllegalArgumentException("odd length");
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if(high < 0 || low < 0) throw new IllegalArgumentException("not hex");
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    private void publish(WebhookEvent event) {
+        for(WebhookListener listener : listeners) {
+            try {
+                listener.onEvent(event);
+                if(event instanceof PushEvent) listener.onPush((PushEvent) event);
+                else if(event instanceof RefEvent) listener.onRef((RefEvent) event);
+                else if(event instanceof RepositoryEvent) listener.onRepository((RepositoryEvent) event);
+                else if(event instanceof BranchProtectionRuleEvent) listener.onBranchProtectionRule((BranchProtectionRuleEvent) event);
+            } catch (RuntimeException e) {
+                // one failing listener should not stop the others
+                e.printStackTrace();
+            }
+        }
+    }
+}